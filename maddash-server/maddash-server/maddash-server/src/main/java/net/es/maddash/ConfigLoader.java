@@ -155,6 +155,21 @@ public class ConfigLoader {
     static final public String PROP_NOTIFICATIONS_FILTERS_VALUE = "value";
     static final public String PROP_NOTIFICATIONS_PARAMS = "parameters";
     
+    /**
+     * Builds an index of the dimensions in the configuration. The dimensions are 
+     * also written to the database by {@link #load(Map, ComboPooledDataSource)}.
+     * 
+     * @param config Properties loaded from YAML file as a Map
+     * @return the index of dimensions
+     */
+    static public DimensionIndex loadDimensionIndex(Map config) {
+        List<?> dimensions = null;
+        if(config.containsKey(PROP_DIMENSIONS) && config.get(PROP_DIMENSIONS) != null){
+            dimensions = (List<?>) config.get(PROP_DIMENSIONS);
+        }
+        return new DimensionIndex(dimensions);
+    }
+    
     /**
      * Loads YAML properties into scheduler database
      * 
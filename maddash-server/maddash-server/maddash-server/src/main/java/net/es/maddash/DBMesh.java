@@ -1,19 +1,22 @@
 package net.es.maddash;
 
-import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
@@ -21,6 +24,9 @@ import org.apache.log4j.Logger;
 
 import net.es.maddash.madalert.BaseMesh;
 import net.es.maddash.madalert.JsonUtil;
+import net.es.maddash.madalert.Madalert;
+import net.es.maddash.madalert.Report;
+import net.es.maddash.madalert.Rule;
 import net.es.maddash.utils.DimensionUtil;
 import net.es.maddash.utils.URIUtil;
 
@@ -35,24 +41,62 @@ public class DBMesh extends BaseMesh{
     private Logger netlogger = Logger.getLogger("netlogger");
     
     private String name;
-    private HashMap<String,String> dimensionLabelMap;
+    private Map<String,String> dimensionLabelMap;
     private JsonArray statusLabels;
     private Long lastUpdateTime;
     private JsonArray columnNames;
     private JsonArray columnProps;
     private JsonArray checkNames;
-    private JsonArray grid;
     private JsonArray rows;
+    private HashMap<String,Integer> rowIndexMap;
+    private HashMap<String,Integer> colIndexMap;
+    private HashMap<String,Integer> checkIndexMap;
+    //cells[row][col] is null when the row has no checks for that column
+    private JsonObject[][][] cells;
+    //the status of each check, which is all madalert rules need to look at
+    private StatusMatrixMesh statusMatrix;
+    private long version;
+    private long layoutVersion;
+    private long layoutModified;
+    private String jsonString;
+    private long jsonVersion;
+    private Report report;
+    private JsonObject reportJson;
+    //the rule and status version of the matrix the report was created from
+    private Rule reportRule;
+    private long reportVersion;
+    private ArrayDeque<CheckChange> changeLog;
+    private int changeLogSize;
+    //all changes with a version greater than this are in the change log
+    private long changeLogFloor;
+    
+    /* Records which check changed at a version. The current state of the check
+     * is read from the mesh when changes are requested. */
+    private static class CheckChange {
+        long version;
+        int row;
+        int col;
+        int check;
+        boolean statusChanged;
+        
+        CheckChange(long version, int row, int col, int check, boolean statusChanged){
+            this.version = version;
+            this.row = row;
+            this.col = col;
+            this.check = check;
+            this.statusChanged = statusChanged;
+        }
+    }
      
-    public JsonObjectBuilder toJsonBuilder(){
+    synchronized public JsonObjectBuilder toJsonBuilder(){
         JsonObjectBuilder json = Json.createObjectBuilder();
         json.add("name", this.name);
         json.add("statusLabels", this.statusLabels);
-        json.add("lastUpdateTime", lastUpdateTime);
+        json.add("lastUpdateTime", this.lastUpdateTime);
         json.add("columnNames", this.columnNames);
         json.add("columnProps", this.columnProps);
         json.add("checkNames", this.checkNames);
-        json.add("grid", this.grid);
+        json.add("grid", this.buildGrid());
         json.add("rows", this.rows);
         return json;
     }
@@ -107,23 +151,8 @@ public class DBMesh extends BaseMesh{
             this.statusLabels = statusLabels.build();
             
             //get row and column labels
-            HashMap<String, String> dimensionLabelMap = new HashMap<String, String>();
-            HashMap<String,JsonObjectBuilder> dimensionProperties = new HashMap<String,JsonObjectBuilder>();
-            PreparedStatement labelStmt = conn.prepareStatement("SELECT configIdent, keyName, value FROM dimensions");
-            ResultSet labelResults = labelStmt.executeQuery();
-            while(labelResults.next()){
-                if(ConfigLoader.PROP_DIMENSIONS_LABEL.equals(labelResults.getString(2))){
-                    dimensionLabelMap.put(labelResults.getString(1), labelResults.getString(3));
-                }
-                if(!dimensionProperties.containsKey(labelResults.getString(1)) || dimensionProperties.get(labelResults.getString(1)) == null){
-                    dimensionProperties.put(labelResults.getString(1), Json.createObjectBuilder());
-                }
-                if(ConfigLoader.PROP_DIMENSION_MAP.equals(labelResults.getString(2))){
-                    dimensionProperties.get(labelResults.getString(1)).add(labelResults.getString(2).toLowerCase(), Json.createReader(new StringReader(labelResults.getString(3))).readObject());
-                }else{
-                    dimensionProperties.get(labelResults.getString(1)).add(labelResults.getString(2).toLowerCase(), labelResults.getString(3));
-                }
-            }
+            DimensionIndex dimensionIndex = MaDDashGlobals.getInstance().getDimensionIndex();
+            Map<String, String> dimensionLabelMap = dimensionIndex.getLabelMap();
             this.dimensionLabelMap = dimensionLabelMap;
             
             //get information on checks
@@ -157,8 +186,8 @@ public class DBMesh extends BaseMesh{
                     tmpRowObj.add("name", rowName);
                     tmpRowObj.add("uri", "/" + uriPath + 
                             "/" + URIUtil.normalizeURIPart(rowName));
-                    if(dimensionProperties.containsKey(rowName) && dimensionProperties.get(rowName) != null){
-                        tmpRowObj.add("props", dimensionProperties.get(rowName));
+                    if(dimensionIndex.getProperties(rowName) != null){
+                        tmpRowObj.add("props", dimensionIndex.getProperties(rowName));
                     }else{
                         tmpRowObj.add("props", Json.createObjectBuilder());
                     }
@@ -205,31 +234,44 @@ public class DBMesh extends BaseMesh{
             }
             this.lastUpdateTime = lastUpdateTime;
             this.columnNames = DimensionUtil.translateNames(colList, dimensionLabelMap);
-            this.columnProps = DimensionUtil.translateProperties(colList, dimensionProperties);
+            this.columnProps = DimensionUtil.translateProperties(colList, dimensionIndex);
             this.checkNames = jsonCheckList.build();
             
-            JsonArrayBuilder jsonGrid = Json.createArrayBuilder();
-            for(String row : rowNames){
-                JsonArrayBuilder jsonRow = Json.createArrayBuilder();
-                for(String col: colList){
-                    if(!grid.get(row).containsKey(col)){
-                        jsonRow.add(JsonValue.NULL);
+            this.rowIndexMap = this.buildIndexMap(rowNames);
+            this.colIndexMap = this.buildIndexMap(colList);
+            this.checkIndexMap = this.buildIndexMap(checkList);
+            this.cells = new JsonObject[rowNames.size()][colList.size()][];
+            for(int r = 0; r < rowNames.size(); r++){
+                Map<String, Map<String,JsonObjectBuilder>> rowCols = grid.get(rowNames.get(r));
+                for(int c = 0; c < colList.size(); c++){
+                    if(!rowCols.containsKey(colList.get(c))){
                         continue;
                     }
-                    JsonArrayBuilder jsonCol = Json.createArrayBuilder();
-                    for(String check : checkList){
-                        if(grid.get(row).get(col).containsKey(check)){
-                            jsonCol.add(grid.get(row).get(col).get(check));
-                        }else{
-                            jsonCol.add(JsonValue.NULL);
+                    Map<String,JsonObjectBuilder> colChecks = rowCols.get(colList.get(c));
+                    this.cells[r][c] = new JsonObject[checkList.size()];
+                    for(int k = 0; k < checkList.size(); k++){
+                        if(colChecks.containsKey(checkList.get(k))){
+                            this.cells[r][c][k] = colChecks.get(checkList.get(k)).build();
                         }
                     }
-                    jsonRow.add(jsonCol);
                 }
-                jsonGrid.add(jsonRow);
             }
-            this.grid = jsonGrid.build();
             this.rows = DimensionUtil.translateJsonObjNames(rowNames, rowList, dimensionLabelMap);
+            this.statusMatrix = new StatusMatrixMesh(gridName, this.buildRowNames(), 
+                    JsonUtil.toListString(this.columnNames), checkList.size(), 
+                    JsonUtil.toListString(this.statusLabels));
+            for(int r = 0; r < this.cells.length; r++){
+                for(int c = 0; c < this.cells[r].length; c++){
+                    if(this.cells[r][c] == null){
+                        continue;
+                    }
+                    for(int k = 0; k < this.cells[r][c].length; k++){
+                        if(this.cells[r][c][k] != null){
+                            this.statusMatrix.setStatus(r, c, k, this.cells[r][c][k].getInt("status"));
+                        }
+                    }
+                }
+            }
         } catch (Exception e) {
             if(conn != null){
                 try {
@@ -247,11 +289,15 @@ public class DBMesh extends BaseMesh{
 
     @Override
     public List<String> getColumnNames() {
-        return JsonUtil.toListString(this.columnNames);
+        return this.statusMatrix.getColumnNames();
     }
 
     @Override
     public List<String> getRowNames() {
+        return this.statusMatrix.getRowNames();
+    }
+
+    private List<String> buildRowNames() {
         ArrayList<String> rowNames = new ArrayList<String>();
         for(int i = 0; i < this.rows.size(); i++){
             if(this.rows.getJsonObject(i).containsKey("props") && this.rows.getJsonObject(i).getJsonObject("props") != JsonValue.NULL &&
@@ -267,12 +313,12 @@ public class DBMesh extends BaseMesh{
 
     @Override
     public int getCheckCount() {
-        return this.checkNames.size();
+        return this.statusMatrix.getCheckCount();
     }
 
     @Override
     public List<String> getStatusLabels() {
-        return JsonUtil.toListString(this.statusLabels);
+        return this.statusMatrix.getStatusLabels();
     }
 
     @Override
@@ -286,13 +332,254 @@ public class DBMesh extends BaseMesh{
     }
 
     @Override
-    public int statusFor(int row, int column, int check) {
-        return this.grid.getJsonArray(row).getJsonArray(column).getJsonObject(check).getInt("status");
+    synchronized public int statusFor(int row, int column, int check) {
+        return this.statusMatrix.statusFor(row, column, check);
     }
 
     @Override
-    public boolean hasColumn(int row, int column) {
-        return this.grid.getJsonArray(row).get(column) != JsonValue.NULL;
+    synchronized public boolean hasColumn(int row, int column) {
+        return this.statusMatrix.hasColumn(row, column);
+    }
+    
+    /**
+     * Updates the state of a single check in this mesh in place. Called after a new 
+     * result for the check has been stored so the mesh does not need to be reloaded.
+     * 
+     * @param rowName the name of the row containing the check
+     * @param colName the name of the column containing the check
+     * @param checkName the name of the check
+     * @param status the new status of the check
+     * @param message the new status message. If null the current message is kept.
+     * @param prevCheckTime the time the check last ran. If less than 0 the current time is kept.
+     * @param version the version of the mesh after this update
+     * @return true if the check was found in this mesh, false otherwise
+     */
+    synchronized public boolean updateCheck(String rowName, String colName, String checkName, 
+            int status, String message, long prevCheckTime, long version){
+        if(!this.rowIndexMap.containsKey(rowName) || !this.colIndexMap.containsKey(colName) || 
+                !this.checkIndexMap.containsKey(checkName)){
+            return false;
+        }
+        int rowIndex = this.rowIndexMap.get(rowName);
+        int colIndex = this.colIndexMap.get(colName);
+        JsonObject[] cell = this.cells[rowIndex][colIndex];
+        int checkIndex = this.checkIndexMap.get(checkName);
+        if(cell == null || cell[checkIndex] == null){
+            return false;
+        }
+        JsonObject oldCheck = cell[checkIndex];
+        if(message == null){
+            message = oldCheck.getString("message");
+        }
+        if(prevCheckTime < 0){
+            prevCheckTime = oldCheck.getJsonNumber("prevCheckTime").longValue();
+        }
+        cell[checkIndex] = Json.createObjectBuilder()
+                .add("message", message)
+                .add("status", status)
+                .add("prevCheckTime", prevCheckTime)
+                .add("uri", oldCheck.getString("uri"))
+                .build();
+        this.statusMatrix.setStatus(rowIndex, colIndex, checkIndex, status);
+        if(this.lastUpdateTime == null || prevCheckTime > this.lastUpdateTime){
+            this.lastUpdateTime = prevCheckTime;
+        }
+        this.setVersion(version);
+        
+        //record change, dropping the oldest once the log is full
+        if(this.changeLog == null){
+            this.changeLog = new ArrayDeque<CheckChange>();
+        }
+        this.changeLog.addLast(new CheckChange(version, rowIndex, colIndex, checkIndex, 
+                oldCheck.getInt("status") != status));
+        while(this.changeLog.size() > this.changeLogSize){
+            this.changeLogFloor = this.changeLog.removeFirst().version;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the checks that changed after the given version. Each changed check 
+     * is listed once with its current state. If changes after the version are no 
+     * longer in the change log then "full" is set to true and the client should 
+     * request the entire grid. The report is included if the status of any check changed.
+     * 
+     * @param sinceVersion the version the client last saw
+     * @return JSON describing the changes
+     */
+    synchronized public JsonObjectBuilder getChangesSince(long sinceVersion){
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("version", GridCache.getVersionTag(this.version));
+        if(sinceVersion < this.changeLogFloor || sinceVersion > this.version){
+            json.add("full", true);
+            return json;
+        }
+        json.add("full", false);
+        
+        //walk newest to oldest so only the latest change to each check is kept
+        LinkedHashMap<String,CheckChange> changedChecks = new LinkedHashMap<String,CheckChange>();
+        boolean statusChanged = false;
+        if(this.changeLog != null){
+            Iterator<CheckChange> changeIter = this.changeLog.descendingIterator();
+            while(changeIter.hasNext()){
+                CheckChange change = changeIter.next();
+                if(change.version <= sinceVersion){
+                    break;
+                }
+                statusChanged = statusChanged || change.statusChanged;
+                String key = change.row + "," + change.col + "," + change.check;
+                if(!changedChecks.containsKey(key)){
+                    changedChecks.put(key, change);
+                }
+            }
+        }
+        JsonArrayBuilder jsonChanges = Json.createArrayBuilder();
+        for(CheckChange change : changedChecks.values()){
+            jsonChanges.add(Json.createObjectBuilder()
+                    .add("row", change.row)
+                    .add("col", change.col)
+                    .add("check", change.check)
+                    .add("state", this.cells[change.row][change.col][change.check]));
+        }
+        json.add("changes", jsonChanges);
+        if(this.lastUpdateTime != null){
+            json.add("lastUpdateTime", this.lastUpdateTime);
+        }
+        if(statusChanged){
+            json.add("report", this.getReport());
+        }
+        
+        return json;
+    }
+    
+    /**
+     * Returns the grid and its report as a serialized JSON string. The string is 
+     * cached and only rebuilt when the version of the mesh changes.
+     * 
+     * @return the grid and report as a JSON string
+     */
+    synchronized public String toJsonString(){
+        if(this.jsonString == null || this.jsonVersion != this.version){
+            this.jsonString = this.toJsonBuilder()
+                    .add("version", GridCache.getVersionTag(this.version))
+                    .add("report", this.getReport()).build().toString();
+            this.jsonVersion = this.version;
+        }
+        return this.jsonString;
+    }
+    
+    /**
+     * Returns the madalert report for the current state of this mesh as JSON.
+     * See {@link #getRuleReport()}.
+     * 
+     * @return the report as JSON
+     */
+    synchronized public JsonObject getReport(){
+        Report report = this.getRuleReport();
+        if(this.reportJson == null){
+            this.reportJson = report.toJson();
+        }
+        return this.reportJson;
+    }
+    
+    /**
+     * Returns the madalert report for the current state of this mesh. The 
+     * report is cached and only rebuilt when the status of a check changes or 
+     * the rule for the grid is replaced, since new messages and check times do 
+     * not affect it. Grid, check, report and notification requests all share it.
+     * 
+     * @return the report
+     */
+    synchronized public Report getRuleReport(){
+        Rule rule = Madalert.lookupRule(this.name);
+        if(this.report == null || this.reportRule != rule || 
+                this.reportVersion != this.statusMatrix.getStatusVersion()){
+            this.report = rule.createReport(this.statusMatrix);
+            this.reportJson = null;
+            this.reportRule = rule;
+            this.reportVersion = this.statusMatrix.getStatusVersion();
+        }
+        return this.report;
+    }
+    
+    /**
+     * Sets the version of this mesh. Should be called each time the state of 
+     * the mesh changes with a value greater than any used before. The first version 
+     * set is also used as the version of the layout (rows, columns and checks) of the mesh.
+     * 
+     * @param version the new version
+     */
+    synchronized public void setVersion(long version){
+        this.version = version;
+        if(this.layoutVersion == 0){
+            this.layoutVersion = this.version;
+            this.layoutModified = System.currentTimeMillis();
+            this.changeLogFloor = this.version;
+        }
+    }
+    
+    /**
+     * Sets the maximum number of changes kept for getChangesSince. Requests for 
+     * changes older than the oldest one kept will be told to load the full grid.
+     * 
+     * @param changeLogSize the maximum number of changes to keep
+     */
+    synchronized public void setChangeLogSize(int changeLogSize){
+        this.changeLogSize = changeLogSize;
+    }
+    
+    /**
+     * @return the version of the mesh state
+     */
+    synchronized public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the version of the rows, columns and checks in the mesh
+     */
+    synchronized public long getLayoutVersion() {
+        return this.layoutVersion;
+    }
+
+    /**
+     * @return the time in milliseconds the mesh layout was loaded
+     */
+    synchronized public long getLayoutModified() {
+        return this.layoutModified;
+    }
+    
+    private JsonArray buildGrid(){
+        JsonArrayBuilder jsonGrid = Json.createArrayBuilder();
+        for(JsonObject[][] row : this.cells){
+            JsonArrayBuilder jsonRow = Json.createArrayBuilder();
+            for(JsonObject[] col : row){
+                if(col == null){
+                    jsonRow.add(JsonValue.NULL);
+                    continue;
+                }
+                JsonArrayBuilder jsonCol = Json.createArrayBuilder();
+                for(JsonObject check : col){
+                    if(check == null){
+                        jsonCol.add(JsonValue.NULL);
+                    }else{
+                        jsonCol.add(check);
+                    }
+                }
+                jsonRow.add(jsonCol);
+            }
+            jsonGrid.add(jsonRow);
+        }
+        return jsonGrid.build();
+    }
+    
+    private HashMap<String,Integer> buildIndexMap(List<String> names){
+        HashMap<String,Integer> indexMap = new HashMap<String,Integer>();
+        for(int i = 0; i < names.size(); i++){
+            indexMap.put(names.get(i), i);
+        }
+        return indexMap;
     }
     
     public String lookupLabel(String dimensionId) {
@@ -0,0 +1,153 @@
+package net.es.maddash;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import net.es.maddash.utils.DimensionUtil;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable view of the dimensions section of the configuration, built each time
+ * the configuration is loaded. The variables a check sees for each row and column
+ * pair are resolved up front so scheduling a check and drawing a grid never
+ * need to read or parse dimensions from the database.
+ */
+public class DimensionIndex {
+    private Logger log = Logger.getLogger(DimensionIndex.class);
+    //configIdent -> variables when paired with a dimension that has its own map entry
+    private Map<String, Map<String, Map<String,String>>> pairVars;
+    //configIdent -> variables when paired with any other dimension
+    private Map<String, Map<String,String>> defaultVars;
+    private Map<String,String> labelMap;
+    private Map<String,JsonObject> propertiesMap;
+
+    /**
+     * Creates an index with no dimensions
+     */
+    public DimensionIndex(){
+        this(null);
+    }
+
+    /**
+     * Creates an index from the dimensions in the configuration
+     *
+     * @param dimensions the list of dimensions from the configuration, each a map. May be null.
+     */
+    public DimensionIndex(List<?> dimensions){
+        HashMap<String, Map<String, Map<String,String>>> pairVars = new HashMap<String, Map<String, Map<String,String>>>();
+        HashMap<String, Map<String,String>> defaultVars = new HashMap<String, Map<String,String>>();
+        HashMap<String,String> labelMap = new HashMap<String,String>();
+        HashMap<String,JsonObject> propertiesMap = new HashMap<String,JsonObject>();
+        if(dimensions == null){
+            dimensions = Collections.emptyList();
+        }
+
+        for(Object dimensionObj : dimensions){
+            Map<?,?> dimension = (Map<?,?>) dimensionObj;
+            if(!dimension.containsKey(ConfigLoader.PROP_DIMENSIONS_ID) ||
+                    dimension.get(ConfigLoader.PROP_DIMENSIONS_ID) == null){
+                continue;
+            }
+            String configIdent = dimension.get(ConfigLoader.PROP_DIMENSIONS_ID) + "";
+            HashMap<String,String> vars = new HashMap<String,String>();
+            JSONObject varMap = null;
+            JsonObjectBuilder props = Json.createObjectBuilder();
+            for(Object dimensionParamObj : dimension.keySet()){
+                String dimensionParam = dimensionParamObj + "";
+                if(dimensionParam.equals(ConfigLoader.PROP_DIMENSIONS_ID)){
+                    continue;
+                }else if(dimensionParam.equals(ConfigLoader.PROP_DIMENSION_MAP)){
+                    varMap = JSONObject.fromObject(dimension.get(dimensionParam));
+                    props.add(dimensionParam.toLowerCase(),
+                            Json.createReader(new StringReader(varMap.toString())).readObject());
+                }else{
+                    String dimensionValue = dimension.get(dimensionParam) + "";
+                    vars.put(dimensionParam, dimensionValue);
+                    props.add(dimensionParam.toLowerCase(), dimensionValue);
+                    if(dimensionParam.equals(ConfigLoader.PROP_DIMENSIONS_LABEL)){
+                        labelMap.put(configIdent, dimensionValue);
+                    }
+                }
+            }
+            propertiesMap.put(configIdent, props.build());
+
+            //resolve map entries for each dimension named in the map plus the default
+            HashMap<String, Map<String,String>> identPairVars = new HashMap<String, Map<String,String>>();
+            if(varMap != null){
+                for(Object otherIdent : varMap.keySet()){
+                    identPairVars.put(otherIdent + "", this.resolve(vars, varMap, otherIdent + ""));
+                }
+                defaultVars.put(configIdent, this.resolve(vars, varMap, null));
+            }else{
+                defaultVars.put(configIdent, Collections.unmodifiableMap(vars));
+            }
+            pairVars.put(configIdent, identPairVars);
+        }
+
+        this.pairVars = pairVars;
+        this.defaultVars = defaultVars;
+        this.labelMap = Collections.unmodifiableMap(labelMap);
+        this.propertiesMap = propertiesMap;
+    }
+
+    /**
+     * Returns the variables a dimension provides to checks. Entries of the
+     * dimension's map are included with a "map." prefix using the entry for the
+     * other dimension or the default entry.
+     *
+     * @param configIdent the id of the dimension
+     * @param otherConfigIdent the id of the dimension it is paired with in the check
+     * @return an unmodifiable map of variables. Empty if the dimension is not defined.
+     */
+    public Map<String,String> getVars(String configIdent, String otherConfigIdent){
+        Map<String, Map<String,String>> identPairVars = this.pairVars.get(configIdent);
+        if(identPairVars == null){
+            return Collections.emptyMap();
+        }
+        Map<String,String> vars = identPairVars.get(otherConfigIdent);
+        if(vars == null){
+            vars = this.defaultVars.get(configIdent);
+        }
+        return vars;
+    }
+
+    /**
+     * @return an unmodifiable map of dimension ids to their display labels
+     */
+    public Map<String,String> getLabelMap(){
+        return this.labelMap;
+    }
+
+    /**
+     * Returns the properties of a dimension as they are displayed in a grid
+     *
+     * @param configIdent the id of the dimension
+     * @return the properties with lower case names or null if the dimension is not defined
+     */
+    public JsonObject getProperties(String configIdent){
+        return this.propertiesMap.get(configIdent);
+    }
+
+    private Map<String,String> resolve(Map<String,String> vars, JSONObject varMap, String otherConfigIdent){
+        HashMap<String,String> resolved = new HashMap<String,String>(vars);
+        try{
+            JSONObject mapProps = (otherConfigIdent == null ?
+                    DimensionUtil.getJsonProp(varMap, "default") : DimensionUtil.getJsonProp(varMap, otherConfigIdent));
+            for(Object propName : mapProps.keySet()){
+                resolved.put("map." + propName, mapProps.getString(propName + ""));
+            }
+        }catch(Exception e){
+            log.warn("Unable to resolve map entry " + otherConfigIdent + ": " + e.getMessage());
+        }
+        return Collections.unmodifiableMap(resolved);
+    }
+}
@@ -0,0 +1,269 @@
+package net.es.maddash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import net.es.maddash.utils.URIUtil;
+import net.es.maddash.www.rest.CheckResource;
+
+/**
+ * Keeps a materialized DBMesh for each grid so requests for a grid can be answered
+ * from memory. A mesh is loaded from the database the first time its grid is requested,
+ * updated in place as new check results are stored and thrown away when the
+ * configuration is reloaded. Each change to a mesh gives it a new version that is
+ * greater than any version previously handed out by this cache. Grids are loaded
+ * without holding the lock of the cache, so loading a large grid does not hold up
+ * updates to the others. Updates to a grid that arrive while it loads are applied
+ * to it before it is stored.
+ */
+public class GridCache {
+    private Logger log = Logger.getLogger(GridCache.class);
+    private ConcurrentHashMap<String, DBMesh> meshMap;
+    private ConcurrentHashMap<String, MeshLoad> loadMap;
+    private AtomicLong versionCounter;
+    private int changeLogSize;
+    //distinguishes versions from ones handed out before a restart
+    final static private String INSTANCE_ID = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * Creates a new cache
+     * 
+     * @param changeLogSize the number of changes each grid remembers for delta requests
+     */
+    public GridCache(int changeLogSize){
+        this.meshMap = new ConcurrentHashMap<String, DBMesh>();
+        this.loadMap = new ConcurrentHashMap<String, MeshLoad>();
+        this.versionCounter = new AtomicLong(0);
+        this.changeLogSize = changeLogSize;
+    }
+
+    /**
+     * Returns the mesh for the given grid, loading it from the database if
+     * it is not already in memory.
+     *
+     * @param gridName the name of the grid
+     * @return the mesh for the grid
+     */
+    public DBMesh getMesh(String gridName){
+        DBMesh mesh = this.meshMap.get(gridName);
+        if(mesh != null){
+            return mesh;
+        }
+
+        //only one request loads a grid, any others wait for it
+        MeshLoad load = null;
+        boolean runLoad = false;
+        synchronized(this){
+            mesh = this.meshMap.get(gridName);
+            if(mesh != null){
+                return mesh;
+            }
+            load = this.loadMap.get(gridName);
+            if(load == null){
+                load = new MeshLoad(gridName);
+                this.loadMap.put(gridName, load);
+                runLoad = true;
+            }
+        }
+        if(runLoad){
+            load.task.run();
+        }
+
+        try{
+            return load.task.get();
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause().getMessage());
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading grid " + gridName);
+        }
+    }
+
+    /*
+     * Reads a grid from the database then, holding the lock, catches it up on the
+     * updates that arrived while it was read and stores it
+     */
+    private DBMesh loadMesh(MeshLoad load){
+        try{
+            log.debug("Loading grid " + load.gridName + " into cache");
+            DBMesh mesh = new DBMesh(load.gridName, GridCache.uriPath(load.gridName));
+            mesh.setChangeLogSize(this.changeLogSize);
+            synchronized(this){
+                mesh.setVersion(this.versionCounter.incrementAndGet());
+                boolean current = !load.discarded;
+                for(PendingUpdate update : load.pendingUpdates){
+                    if(!current){
+                        break;
+                    }
+                    current = mesh.updateCheck(update.rowName, update.colName, update.checkName,
+                            update.status, update.message, update.prevCheckTime,
+                            this.versionCounter.incrementAndGet());
+                }
+                //a grid invalidated while loading is read again on next request
+                if(current){
+                    this.meshMap.put(load.gridName, mesh);
+                }
+            }
+            return mesh;
+        }finally{
+            synchronized(this){
+                this.loadMap.remove(load.gridName, load);
+            }
+        }
+    }
+
+    /**
+     * Updates a check in the cached mesh after a new result has been committed to the database.
+     * Does nothing if the grid is not currently cached since it will be read fresh when loaded.
+     * If the grid is loading the update is applied once it has been read.
+     *
+     * @param gridName the name of the grid containing the check
+     * @param rowName the name of the row containing the check
+     * @param colName the name of the column containing the check
+     * @param checkName the name of the check
+     * @param status the new status of the check
+     * @param message the new status message or null to keep the current message
+     * @param prevCheckTime the time the check last ran or -1 to keep the current value
+     */
+    public void updateCheck(String gridName, String rowName, String colName, String checkName,
+            int status, String message, long prevCheckTime){
+        DBMesh mesh = this.meshMap.get(gridName);
+        if(mesh == null){
+            synchronized(this){
+                mesh = this.meshMap.get(gridName);
+                if(mesh == null){
+                    //apply once the grid is loaded in case it was read before the commit
+                    MeshLoad load = this.loadMap.get(gridName);
+                    if(load != null){
+                        load.pendingUpdates.add(new PendingUpdate(rowName, colName, checkName,
+                                status, message, prevCheckTime));
+                    }
+                    return;
+                }
+            }
+        }
+
+        if(!mesh.updateCheck(rowName, colName, checkName, status, message, prevCheckTime, 
+                this.versionCounter.incrementAndGet())){
+            //check is not in the mesh we have, so the grid layout changed
+            this.invalidate(gridName);
+        }
+    }
+    
+    /**
+     * Converts a version of a mesh to a tag that is unique across restarts of the server.
+     * Suitable for use as an HTTP entity tag.
+     * 
+     * @param version the version to convert
+     * @return the version tag
+     */
+    static public String getVersionTag(long version){
+        return INSTANCE_ID + "-" + version;
+    }
+    
+    /**
+     * Converts a tag created by getVersionTag back to a version
+     * 
+     * @param versionTag the tag to convert
+     * @return the version or -1 if the tag is invalid or was created before a restart
+     */
+    static public long parseVersionTag(String versionTag){
+        if(versionTag == null || !versionTag.startsWith(INSTANCE_ID + "-")){
+            return -1;
+        }
+        try{
+            return Long.parseLong(versionTag.substring(INSTANCE_ID.length() + 1));
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Removes a grid from the cache so it is reloaded on next request
+     *
+     * @param gridName the name of the grid to remove
+     */
+    synchronized public void invalidate(String gridName){
+        this.meshMap.remove(gridName);
+        MeshLoad load = this.loadMap.remove(gridName);
+        if(load != null){
+            load.discarded = true;
+        }
+    }
+
+    /**
+     * Removes all grids from the cache. Called when the configuration is reloaded.
+     */
+    synchronized public void clear(){
+        this.meshMap.clear();
+        for(MeshLoad load : this.loadMap.values()){
+            load.discarded = true;
+        }
+        this.loadMap.clear();
+    }
+
+    /**
+     * Builds the path used to generate URIs in a mesh. Matches the URI given to
+     * grids when listing dashboards.
+     *
+     * @param gridName the name of the grid
+     * @return the path of the grid without a leading slash
+     */
+    static public String uriPath(String gridName){
+        return CheckResource.rootPath.substring(1) + "/" + URIUtil.normalizeURIPart(gridName);
+    }
+
+    /*
+     * A grid being loaded. Fields other than the task are guarded by the lock of the cache.
+     */
+    private class MeshLoad {
+        String gridName;
+        FutureTask<DBMesh> task;
+        List<PendingUpdate> pendingUpdates;
+        boolean discarded;
+
+        MeshLoad(String gridName){
+            this.gridName = gridName;
+            this.pendingUpdates = new ArrayList<PendingUpdate>();
+            this.discarded = false;
+            final MeshLoad load = this;
+            this.task = new FutureTask<DBMesh>(new Callable<DBMesh>(){
+                public DBMesh call(){
+                    return GridCache.this.loadMesh(load);
+                }
+            });
+        }
+    }
+
+    /*
+     * A check update that arrived while its grid was loading
+     */
+    static private class PendingUpdate {
+        String rowName;
+        String colName;
+        String checkName;
+        int status;
+        String message;
+        long prevCheckTime;
+
+        PendingUpdate(String rowName, String colName, String checkName, int status,
+                String message, long prevCheckTime){
+            this.rowName = rowName;
+            this.colName = colName;
+            this.checkName = checkName;
+            this.status = status;
+            this.message = message;
+            this.prevCheckTime = prevCheckTime;
+        }
+    }
+}
@@ -5,7 +5,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
@@ -24,11 +23,23 @@ import javax.json.JsonObjectBuilder;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.UriBuilder;
 
+import net.es.maddash.checks.ArchiveQueryBatcher;
+import net.es.maddash.checks.CommandTemplate;
+import net.es.maddash.db.DerbyStorageBackend;
+import net.es.maddash.db.ResultsStore;
+import net.es.maddash.db.SchemaMigrator;
+import net.es.maddash.db.StorageBackend;
+import net.es.maddash.db.StorageBackendFactory;
 import net.es.maddash.jobs.CheckSchedulerJob;
 import net.es.maddash.jobs.CleanDBJob;
 import net.es.maddash.jobs.ConfigWatcherJob;
 import net.es.maddash.jobs.EventCalendarJob;
+import net.es.maddash.jobs.ResultWriter;
+import net.es.maddash.jobs.RollupJob;
+import net.es.maddash.notifications.NotificationEngine;
+import net.es.maddash.notifications.NotificationProblemStore;
 import net.es.maddash.utils.URIUtil;
+import net.es.maddash.www.GridStreamPublisher;
 import net.es.maddash.www.MaDDashApplication;
 import net.es.maddash.www.WebServer;
 import net.es.maddash.www.rest.GridsResource;
@@ -59,17 +70,31 @@ public class MaDDashGlobals {
     static private String configFile = null;
 
     private ComboPooledDataSource dataSource = null;
+    private StorageBackend storageBackend = null;
+    private ResultsStore resultsStore = null;
     private Scheduler scheduler;
     private ResourceManager resourceManager;
+    private GridCache gridCache;
+    private NotificationEngine notificationEngine;
+    private NotificationProblemStore notificationProblemStore;
+    private volatile DimensionIndex dimensionIndex;
     private int jobBatchSize;
     private int threadPoolSize;
+    private String checkExecutionMode;
+    private Map<String,Integer> checkTypeConcurrency;
     private long dbDataMaxAge;
+    private long dbRollupMaxAge;
+    private int dbCleanChunkSize;
+    private long dbCleanChunkPause;
     private Map<String, Class> checkTypeClassMap;
-    private HashMap<Integer, Boolean> scheduledChecks; 
     private CheckSchedulerJob checkShedJob;
+    private ResultWriter resultWriter;
+    private int resultBatchSize;
+    private long resultFlushInterval;
     private ConfigWatcherJob configWatcherJob;
     private EventCalendarJob eventCalJob;
     private WebServer webServer;
+    private GridStreamPublisher gridStreamPublisher;
     private String resourceURL;
 
     //web related parameters
@@ -96,10 +121,19 @@ public class MaDDashGlobals {
     final private String PROP_JOB_BATCH_SIZE = "jobBatchSize";
     final private String PROP_SKIP_TABLE_BUILD = "skipTableBuild";
     final private String PROP_JOB_THREAD_POOL_SIZE = "jobThreadPoolSize";
+    final private String PROP_CHECK_EXECUTION_MODE = "checkExecutionMode";
+    final private String PROP_CHECK_TYPE_CONCURRENCY = "checkTypeConcurrency";
+    final private String PROP_RESULT_BATCH_SIZE = "resultBatchSize";
+    final private String PROP_RESULT_FLUSH_INTERVAL = "resultFlushInterval";
     final private String PROP_DISABLE_SCHEDULER = "disableScheduler";
     final private String PROP_DISABLE_CHECKS = "disableChecks";
     final private String PROP_DB_CLEAN_SCHED = "dbCleanSchedule";
     final private String PROP_DB_DATA_MAX_AGE = "dbDataMaxAge";
+    final private String PROP_DB_ROLLUP_MAX_AGE = "dbRollupMaxAge";
+    final private String PROP_DB_CLEAN_CHUNK_SIZE = "dbCleanChunkSize";
+    final private String PROP_DB_CLEAN_CHUNK_PAUSE = "dbCleanChunkPause";
+    final private String PROP_GRID_CHANGE_LOG_SIZE = "gridChangeLogSize";
+    final private String PROP_GRID_STREAM_INTERVAL = "gridStreamInterval";
    // final private String PROP_WEB = "web";
    // final private String PROP_WEB_TITLE = "title";
     //final private String PROP_WEB_DEFAULT = "default";
@@ -108,21 +142,25 @@ public class MaDDashGlobals {
     final private String PROP_DASHBOARDS_GRIDS = "grids";
     final private String PROP_DASHBOARDS_GRIDS_NAME = "name";
 
-    //final static private String JDBC_URL = "jdbc:sqlite:";
-    final static private String JDBC_URL = "jdbc:derby:maddash;create=true";
-    //final static private String JDBC_DRIVER = "org.sqlite.JDBC";
-    final static private String JDBC_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
     final static private String DEFAULT_HOST = "localhost";
-    final static private String DEFAULT_DB = "data/dashboard.db";
     final static private long DEFAULT_DB_DATA_MAX_AGE = 604800;//1 week
+    final static private long DEFAULT_DB_ROLLUP_MAX_AGE = 15552000;//180 days
+    final static private int DEFAULT_DB_CLEAN_CHUNK_SIZE = 10000;
+    final static private long DEFAULT_DB_CLEAN_CHUNK_PAUSE = 100;//milliseconds
     final static private int DEFAULT_JOB_BATCH_SIZE = 250;
     final static private int DEFAULT_THREAD_POOL_SIZE = 20;
+    final static private int QUARTZ_THREAD_POOL_SIZE = 5;
+    final static private int DEFAULT_RESULT_BATCH_SIZE = 100;
+    final static private long DEFAULT_RESULT_FLUSH_INTERVAL = 1000;//milliseconds
+    final static private int DEFAULT_GRID_CHANGE_LOG_SIZE = 1000;
+    final static private long DEFAULT_GRID_STREAM_INTERVAL = 500;//milliseconds
     final static private int C3P0_IDLE_TEST_PERIOD = 600;
     final static private String C3P0_TEST_QUERY = "SELECT id FROM checkTemplates";
     final static private boolean DEFAULT_DISABLE_SCHEDULER = false;
     final static private boolean DEFAULT_DISABLE_CHECKS = false;
     final static private boolean DEFAULT_PROXY_MODE = false;
     final static private String CLEAN_DB_SCHEDULE = "0 0 0/12 * * ?";//every 12 hours
+    final static private String ROLLUP_SCHEDULE = "0 5 * * * ?";//every hour once results are in
 
     /**
      * Sets the configuration file to use
@@ -160,9 +198,46 @@ public class MaDDashGlobals {
         }
         log.debug("threadPoolSize is " + this.threadPoolSize);
         
+        this.checkExecutionMode = CheckSchedulerJob.EXECUTION_MODE_THREADPOOL;
+        if(config.containsKey(PROP_CHECK_EXECUTION_MODE) && config.get(PROP_CHECK_EXECUTION_MODE) != null){
+            this.checkExecutionMode = ((String) config.get(PROP_CHECK_EXECUTION_MODE)).toLowerCase();
+        }
+        log.debug("checkExecutionMode is " + this.checkExecutionMode);
+        
+        this.resultBatchSize = DEFAULT_RESULT_BATCH_SIZE;
+        if(config.containsKey(PROP_RESULT_BATCH_SIZE) && config.get(PROP_RESULT_BATCH_SIZE) != null){
+            this.resultBatchSize = (Integer) config.get(PROP_RESULT_BATCH_SIZE);
+        }
+        log.debug("resultBatchSize is " + this.resultBatchSize);
+        
+        this.resultFlushInterval = DEFAULT_RESULT_FLUSH_INTERVAL;
+        if(config.containsKey(PROP_RESULT_FLUSH_INTERVAL) && config.get(PROP_RESULT_FLUSH_INTERVAL) != null){
+            this.resultFlushInterval = (Integer) config.get(PROP_RESULT_FLUSH_INTERVAL);
+        }
+        log.debug("resultFlushInterval is " + this.resultFlushInterval);
+        
+        this.checkTypeConcurrency = new HashMap<String,Integer>();
+        if(config.containsKey(PROP_CHECK_TYPE_CONCURRENCY) && config.get(PROP_CHECK_TYPE_CONCURRENCY) != null){
+            Map checkTypeConcurrencyMap = (Map) config.get(PROP_CHECK_TYPE_CONCURRENCY);
+            for(Object checkType : checkTypeConcurrencyMap.keySet()){
+                this.checkTypeConcurrency.put(checkType + "", (Integer) checkTypeConcurrencyMap.get(checkType));
+            }
+        }
+        log.debug("checkTypeConcurrency is " + this.checkTypeConcurrency);
+        
         //create resource manager
         this.resourceManager = new ResourceManager();
         
+        //create grid cache
+        int gridChangeLogSize = DEFAULT_GRID_CHANGE_LOG_SIZE;
+        if(config.containsKey(PROP_GRID_CHANGE_LOG_SIZE) && config.get(PROP_GRID_CHANGE_LOG_SIZE) != null){
+            gridChangeLogSize = (Integer) config.get(PROP_GRID_CHANGE_LOG_SIZE);
+        }
+        log.debug("gridChangeLogSize is " + gridChangeLogSize);
+        this.gridCache = new GridCache(gridChangeLogSize);
+        this.notificationEngine = new NotificationEngine(this.gridCache);
+        this.dimensionIndex = new DimensionIndex();
+        
         //set server host
         String serverHost = DEFAULT_HOST;
         if(config.containsKey(PROP_SERVER_HOST) && config.get(PROP_SERVER_HOST) != null){
@@ -175,15 +250,16 @@ public class MaDDashGlobals {
         if(config.containsKey(PROP_SKIP_TABLE_BUILD) && config.get(PROP_SKIP_TABLE_BUILD) != null){
             skipTableBuild = (((Integer) config.get(PROP_SKIP_TABLE_BUILD)) != 0 ? true : false);
         }
-        String dbFile = DEFAULT_DB;
+        Object dbConfig = null;
         if(config.containsKey(PROP_DATABASE) && config.get(PROP_DATABASE) != null){
-            dbFile = (String) config.get(PROP_DATABASE);
+            dbConfig = config.get(PROP_DATABASE);
         }
         try {
-            this.initDatabase(dbFile, skipTableBuild);
+            this.initDatabase(dbConfig, skipTableBuild);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
         } 
+        this.notificationProblemStore = new NotificationProblemStore(this.dataSource);
         
         this.load(config);
         
@@ -200,6 +276,15 @@ public class MaDDashGlobals {
         this.eventCalJob = new EventCalendarJob();
         this.eventCalJob.start();
         
+        //init grid streaming
+        long gridStreamInterval = DEFAULT_GRID_STREAM_INTERVAL;
+        if(config.containsKey(PROP_GRID_STREAM_INTERVAL) && config.get(PROP_GRID_STREAM_INTERVAL) != null){
+            gridStreamInterval = (Integer) config.get(PROP_GRID_STREAM_INTERVAL);
+        }
+        log.debug("gridStreamInterval is " + gridStreamInterval);
+        this.gridStreamPublisher = new GridStreamPublisher(gridStreamInterval);
+        this.gridStreamPublisher.start();
+        
         /*
          * NOTE: PackagesResourceConfig does not appear to work
          * with one-jar class loader so loading individually for now
@@ -259,6 +344,12 @@ public class MaDDashGlobals {
                 this.checkShedJob.join();
                 this.checkShedJob = null;
             }
+            //stop writer after checks so results of checks still running get saved
+            if(this.resultWriter != null) {
+                this.resultWriter.disableRunning();
+                this.resultWriter.join();
+                this.resultWriter = null;
+            }
             if(this.scheduler != null){
                 this.scheduler.shutdown(true);
             }
@@ -284,6 +375,24 @@ public class MaDDashGlobals {
         }
         log.debug("dbDataMaxAge is " + this.dbDataMaxAge);
 
+        this.dbRollupMaxAge = DEFAULT_DB_ROLLUP_MAX_AGE;
+        if(config.containsKey(PROP_DB_ROLLUP_MAX_AGE) && config.get(PROP_DB_ROLLUP_MAX_AGE) != null){
+            this.dbRollupMaxAge = (Integer) config.get(PROP_DB_ROLLUP_MAX_AGE);
+        }
+        log.debug("dbRollupMaxAge is " + this.dbRollupMaxAge);
+
+        this.dbCleanChunkSize = DEFAULT_DB_CLEAN_CHUNK_SIZE;
+        if(config.containsKey(PROP_DB_CLEAN_CHUNK_SIZE) && config.get(PROP_DB_CLEAN_CHUNK_SIZE) != null){
+            this.dbCleanChunkSize = (Integer) config.get(PROP_DB_CLEAN_CHUNK_SIZE);
+        }
+        log.debug("dbCleanChunkSize is " + this.dbCleanChunkSize);
+
+        this.dbCleanChunkPause = DEFAULT_DB_CLEAN_CHUNK_PAUSE;
+        if(config.containsKey(PROP_DB_CLEAN_CHUNK_PAUSE) && config.get(PROP_DB_CLEAN_CHUNK_PAUSE) != null){
+            this.dbCleanChunkPause = (Integer) config.get(PROP_DB_CLEAN_CHUNK_PAUSE);
+        }
+        log.debug("dbCleanChunkPause is " + this.dbCleanChunkPause);
+
         boolean disableScheduler = DEFAULT_DISABLE_SCHEDULER;
         if(config.containsKey(PROP_DISABLE_SCHEDULER) && config.get(PROP_DISABLE_SCHEDULER) != null){
             disableScheduler = (((Integer) config.get(PROP_DISABLE_SCHEDULER)) != 0 ? true : false);
@@ -300,18 +409,28 @@ public class MaDDashGlobals {
         if(config.containsKey(PROP_DASHBOARDS) && config.get(PROP_DASHBOARDS) != null){
             this.configureDashboards((List)config.get(PROP_DASHBOARDS));
         }
+        //save notification state before notifications are reloaded
+        this.notificationProblemStore.clear();
         //load tests
         try {
+            this.dimensionIndex = ConfigLoader.loadDimensionIndex(config);
             this.checkTypeClassMap = ConfigLoader.load(config, this.dataSource);
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e.getMessage());
         }
+        //grid layouts may have changed so drop anything cached
+        this.gridCache.clear();
+        this.notificationEngine.clear();
+        //dimension variables may have changed so render commands again
+        CommandTemplate.clearCache();
+        ArchiveQueryBatcher.clear();
 
         //init scheduler
         if(!disableScheduler){
             Properties props = new Properties();
             props.setProperty("org.quartz.threadPool.class", "org.quartz.simpl.SimpleThreadPool");
-            props.setProperty("org.quartz.threadPool.threadCount", this.threadPoolSize + "");
+            //checks run in their own pool so this is only for maintenance and notification jobs
+            props.setProperty("org.quartz.threadPool.threadCount", QUARTZ_THREAD_POOL_SIZE + "");
             try{
                 
                 //db maintenance job
@@ -328,6 +447,16 @@ public class MaDDashGlobals {
                             .build();
                     this.scheduler.scheduleJob(cleanJobDetail, cleanCronTrigger);
                 }
+                if(this.dbRollupMaxAge >= 0L){
+                    CronTrigger rollupCronTrigger = newTrigger()
+                            .withIdentity("RollupTrigger", "CLEAN")
+                            .withSchedule(cronSchedule(ROLLUP_SCHEDULE))
+                            .build();
+                    JobDetail rollupJobDetail = newJob(RollupJob.class)
+                            .withIdentity("RollupScheduler", "CLEAN")
+                            .build();
+                    this.scheduler.scheduleJob(rollupJobDetail, rollupCronTrigger);
+                }
                 
                 //notification jobs
                 ConfigLoader.loadNotifications(config, this.dataSource, this.scheduler);
@@ -338,8 +467,14 @@ public class MaDDashGlobals {
             if(!disableChecks){
                 //can't disable once enabled currently
                 if(this.checkShedJob == null){
+                    //results are written in own thread
+                    this.resultWriter = new ResultWriter("MaDDashResultWriter", 
+                            this.resultBatchSize, this.resultFlushInterval);
+                    this.resultWriter.start();
                     //job that checks for new jobs is in own thread
-                    this.checkShedJob = new CheckSchedulerJob("MaDDashCheckSchedulerJob");
+                    this.checkShedJob = new CheckSchedulerJob("MaDDashCheckSchedulerJob", 
+                            this.checkExecutionMode, this.threadPoolSize, this.jobBatchSize, 
+                            this.checkTypeConcurrency);
                     this.checkShedJob.start();
                 }else{
                     try {
@@ -349,7 +484,6 @@ public class MaDDashGlobals {
                     }
                 }
             }
-            this.scheduledChecks = new HashMap<Integer,Boolean>();
         }
         
     }
@@ -524,15 +658,15 @@ public class MaDDashGlobals {
     }
 
     /**
-     * Connects to derby database and creates it if it does not exist. 
-     * Also creates tables if they do not exist.
-     * @param dbname the directory where the database files will be stored
+     * Connects to the configured database and creates it if it does not exist. 
+     * Also runs any schema migrations not yet applied to the database.
+     * @param dbConfig the directory where derby database files will be stored or a map describing the database
      * @throws PropertyVetoException
      * @throws SQLException
      */
-    synchronized private void initDatabase(String dbname, boolean skipTableBuild) throws PropertyVetoException, SQLException{
+    synchronized private void initDatabase(Object dbConfig, boolean skipTableBuild) throws PropertyVetoException, SQLException{
         if(dataSource == null){
-            System.setProperty("derby.system.home", dbname);
+            this.storageBackend = StorageBackendFactory.create(dbConfig);
             dataSource = new ComboPooledDataSource();
             //Set c3p0 properties
             //allow one connection for each thread 
@@ -542,175 +676,176 @@ public class MaDDashGlobals {
             //set query used to test stale connection
             dataSource.setPreferredTestQuery(C3P0_TEST_QUERY);
             //set class that sets thread isolation level
-            dataSource.setConnectionCustomizerClassName(MaDDashConnectionCustomizer.class.getName());
+            if(this.storageBackend.getConnectionCustomizerClassName() != null){
+                dataSource.setConnectionCustomizerClassName(this.storageBackend.getConnectionCustomizerClassName());
+            }
 
-            dataSource.setDriverClass(JDBC_DRIVER);
-            dataSource.setJdbcUrl(JDBC_URL);
-            log.debug("Set database to " + dbname);
-            log.debug("JDBC_DRIVER is " + JDBC_DRIVER);
-            log.debug("JDBC_URL is " + JDBC_URL);
+            dataSource.setDriverClass(this.storageBackend.getDriverClass());
+            dataSource.setJdbcUrl(this.storageBackend.getJdbcUrl());
+            if(this.storageBackend.getUser() != null){
+                dataSource.setUser(this.storageBackend.getUser());
+            }
+            if(this.storageBackend.getPassword() != null){
+                dataSource.setPassword(this.storageBackend.getPassword());
+            }
+            log.debug("JDBC_DRIVER is " + this.storageBackend.getDriverClass());
+            log.debug("JDBC_URL is " + this.storageBackend.getJdbcUrl());
             Connection conn = this.dataSource.getConnection();
 
-            //Create tables
+            //Create tables and indexes
             if(!skipTableBuild){
-                this.execSQLCreate("CREATE TABLE checks (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY," +
+                int migrated = this.buildSchemaMigrator().migrate(conn);
+                log.info("Ran " + migrated + " database schema migrations");
+            }
+            
+            //results are kept in daily tables created as needed
+            this.resultsStore = new ResultsStore(this.storageBackend, conn);
+            conn.close();
+
+        }
+    }
+
+    /*
+     * Lists every change made to the schema. Add new changes to the end with the 
+     * next version number and never edit one that has been released.
+     */
+    private SchemaMigrator buildSchemaMigrator(){
+        String clobType = this.storageBackend.getClobType();
+        SchemaMigrator migrator = new SchemaMigrator(this.storageBackend);
+        migrator.addMigration(1, "Create tables",
+                "CREATE TABLE checks (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY," +
                         "checkTemplateId INTEGER NOT NULL, gridName VARCHAR(500) NOT NULL, " +
                         "rowName VARCHAR(500) NOT NULL, colName VARCHAR(500) NOT NULL, checkName " +
                         "VARCHAR(500) NOT NULL, rowOrder INT NOT NULL, colOrder INT NOT " +
                         "NULL, description VARCHAR(2000) NOT NULL, prevCheckTime BIGINT " +
                         "NOT NULL, nextCheckTime BIGINT NOT NULL, checkStatus INTEGER " +
                         "NOT NULL, prevResultCode INTEGER NOT NULL, statusMessage VARCHAR(2000) NOT NULL, " +
-                        "resultCount INTEGER NOT NULL, active INTEGER NOT NULL)", conn);
-                this.execSQLCreate("CREATE TABLE checkTemplates (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY," +
-                        " templateName VARCHAR(500) NOT NULL, checkType VARCHAR(500) NOT NULL, checkParams CLOB, checkInterval INTEGER NOT NULL, " +
+                        "resultCount INTEGER NOT NULL, active INTEGER NOT NULL)",
+                "CREATE TABLE checkTemplates (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY," +
+                        " templateName VARCHAR(500) NOT NULL, checkType VARCHAR(500) NOT NULL, checkParams " + clobType + ", checkInterval INTEGER NOT NULL, " +
                         "retryInterval INTEGER NOT NULL, retryAttempts INTEGER NOT NULL, " +
-                        "timeout INTEGER NOT NULL)", conn);
-                this.execSQLCreate("CREATE TABLE results (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        "checkId INTEGER NOT NULL, checkTime BIGINT NOT NULL, returnCode " +
-                        "INTEGER NOT NULL, returnMessage VARCHAR(2000) NOT NULL, returnParams VARCHAR(32672), " +
-                        "resultCount INTEGER NOT NULL, checkStatus INTEGER NOT NULL)", conn);
-                this.execSQLCreate("CREATE TABLE grids (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "timeout INTEGER NOT NULL)",
+                "CREATE TABLE grids (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
                         "gridName VARCHAR(500) NOT NULL, okLabel VARCHAR(2000) NOT NULL, " +
                         "warningLabel VARCHAR(2000) NOT NULL, criticalLabel VARCHAR(2000) NOT NULL, " +
-                        "unknownLabel VARCHAR(2000) NOT NULL, notRunLabel VARCHAR(2000) NOT NULL )", conn);
-                this.execSQLCreate("CREATE TABLE dimensions (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        "configIdent VARCHAR(2000) NOT NULL, keyName VARCHAR(2000) NOT NULL, value CLOB NOT NULL )", conn);
-                this.execSQLCreate("CREATE TABLE events (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        "name VARCHAR(2000) NOT NULL, description VARCHAR(2000) NOT NULL, startTime BIGINT NOT NULL, endTime BIGINT, changeStatus INTEGER NOT NULL )", conn);
-                this.execSQLCreate("CREATE TABLE eventChecks (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        "eventId INTEGER NOT NULL, checkId INTEGER NOT NULL )", conn);
-                this.execSQLCreate("CREATE TABLE checkStateDefs (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        " gridName VARCHAR(500) NOT NULL, stateValue INTEGER NOT NULL,  shortName VARCHAR(500) NOT NULL, description VARCHAR(2000) NOT NULL)", conn);
-                this.execSQLCreate("CREATE TABLE notifications (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        " name VARCHAR(500) NOT NULL, type VARCHAR(500) NOT NULL, params CLOB NOT NULL)", conn);
-                this.execSQLCreate("CREATE TABLE notificationProblems (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
-                        "notificationId INTEGER NOT NULL, checksum VARCHAR(500) NOT NULL, expires BIGINT NOT NULL, lastSeen BIGINT, appData VARCHAR(2000))", conn);
-
-                //Update for 2.0 - convert dimension value to CLOB
-                //don't need data, but do copy to satisfy not null constraint
-                DatabaseMetaData dbMetadata = conn.getMetaData();
-                ResultSet dimensionColMeta = dbMetadata.getColumns(null, null, "DIMENSIONS", "VALUE");
+                        "unknownLabel VARCHAR(2000) NOT NULL, notRunLabel VARCHAR(2000) NOT NULL )",
+                "CREATE TABLE dimensions (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "configIdent VARCHAR(2000) NOT NULL, keyName VARCHAR(2000) NOT NULL, value " + clobType + " NOT NULL )",
+                "CREATE TABLE events (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "name VARCHAR(2000) NOT NULL, description VARCHAR(2000) NOT NULL, startTime BIGINT NOT NULL, endTime BIGINT, changeStatus INTEGER NOT NULL )",
+                "CREATE TABLE eventChecks (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "eventId INTEGER NOT NULL, checkId INTEGER NOT NULL )",
+                "CREATE TABLE checkStateDefs (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        " gridName VARCHAR(500) NOT NULL, stateValue INTEGER NOT NULL,  shortName VARCHAR(500) NOT NULL, description VARCHAR(2000) NOT NULL)",
+                "CREATE TABLE notifications (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        " name VARCHAR(500) NOT NULL, type VARCHAR(500) NOT NULL, params " + clobType + " NOT NULL)",
+                "CREATE TABLE resultRollups (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "checkId INTEGER NOT NULL, resolution INTEGER NOT NULL, periodStart BIGINT NOT NULL, " +
+                        "okCount INTEGER NOT NULL, warningCount INTEGER NOT NULL, criticalCount INTEGER NOT NULL, " +
+                        "unknownCount INTEGER NOT NULL, otherCount INTEGER NOT NULL, transitionCount INTEGER NOT NULL, " +
+                        "firstTransition BIGINT, lastTransition BIGINT, lastStatus INTEGER NOT NULL)",
+                "CREATE TABLE resultRollupStats (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "checkId INTEGER NOT NULL, resolution INTEGER NOT NULL, periodStart BIGINT NOT NULL, " +
+                        "statName VARCHAR(500) NOT NULL, sampleCount INTEGER NOT NULL, statMin DOUBLE PRECISION NOT NULL, " +
+                        "statMax DOUBLE PRECISION NOT NULL, statSum DOUBLE PRECISION NOT NULL)",
+                "CREATE TABLE notificationProblems (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                        "notificationId INTEGER NOT NULL, checksum VARCHAR(500) NOT NULL, expires BIGINT NOT NULL, lastSeen BIGINT, appData VARCHAR(2000))");
+        migrator.addMigration(2, "Create indexes",
+                "CREATE INDEX checksTemplateId ON checks(checkTemplateId)",
+                "CREATE INDEX checksGridName ON checks(gridName)",
+                "CREATE INDEX checksRowName ON checks(rowName)",
+                "CREATE INDEX checksColName ON checks(colName)",
+                "CREATE INDEX checksCheckName ON checks(checkName)",
+                "CREATE INDEX checksActive ON checks(active)",
+                "CREATE INDEX resultRollupsCheck ON resultRollups(checkId, resolution, periodStart)",
+                "CREATE INDEX resultRollupsPeriod ON resultRollups(resolution, periodStart)",
+                "CREATE INDEX resultRollupStatsCheck ON resultRollupStats(checkId, resolution, periodStart)",
+                "CREATE INDEX resultRollupStatsPeriod ON resultRollupStats(resolution, periodStart)",
+                "CREATE UNIQUE INDEX gridsGridName ON grids(gridName)",
+                "CREATE INDEX dimensionsConfigIdent ON dimensions(configIdent)",
+                "CREATE INDEX eventsStart ON events(startTime)",
+                "CREATE INDEX eventsEnd ON events(endTime)",
+                "CREATE INDEX eventChecksEventId ON eventChecks(eventId)",
+                "CREATE INDEX eventChecksCheckId ON eventChecks(checkId)",
+                "CREATE INDEX checkStateDefsGridName ON checkStateDefs(gridName)",
+                "CREATE UNIQUE INDEX notifyName ON notifications(name, type)",
+                "CREATE INDEX notifyProblems ON notificationProblems(notificationId)",
+                "CREATE INDEX notifyChecksum ON notificationProblems(checksum)");
+        //grid display filters on grid and active then sorts and single checks are found by full name.
+        //checksActive is kept for the scheduler and clean-up, nothing that changes with every result is indexed.
+        migrator.addMigration(3, "Replace single column checks indexes with composite indexes",
+                "CREATE INDEX checksGridActive ON checks(gridName, active, rowOrder, colOrder, checkName)",
+                "CREATE INDEX checksFullName ON checks(gridName, rowName, colName, checkName, active)",
+                "CREATE INDEX eventChecksEventCheck ON eventChecks(eventId, checkId)",
+                "DROP INDEX checksGridName",
+                "DROP INDEX checksRowName",
+                "DROP INDEX checksColName",
+                "DROP INDEX checksCheckName",
+                "DROP INDEX eventChecksEventId");
+        //Update for 2.0 - convert dimension value to CLOB
+        //don't need data, but do copy to satisfy not null constraint
+        //only derby databases are old enough to need this
+        migrator.addMigration(4, "Convert dimension values to CLOB", new SchemaMigrator.MigrationStep(){
+            public void apply(Connection conn, SchemaMigrator migrator) throws SQLException {
+                if(!(migrator.getBackend() instanceof DerbyStorageBackend)){
+                    return;
+                }
+                ResultSet dimensionColMeta = conn.getMetaData().getColumns(null, null, "DIMENSIONS", "VALUE");
                 while(dimensionColMeta.next()){
                     if("DIMENSIONS".equals(dimensionColMeta.getString("TABLE_NAME")) &&
                             "VALUE".equals(dimensionColMeta.getString("COLUMN_NAME")) &&
                             dimensionColMeta.getInt("DATA_TYPE") == java.sql.Types.VARCHAR){
-                        System.out.println("Doing update of SQL");
-                        this.execSQLCreate("ALTER TABLE dimensions ADD COLUMN tmpValue CLOB", conn);
-                        this.execSQLCreate("UPDATE dimensions SET tmpValue = value", conn);
-                        this.execSQLCreate("ALTER TABLE dimensions ALTER COLUMN tmpValue NOT NULL", conn);
-                        this.execSQLCreate("ALTER TABLE dimensions DROP COLUMN value", conn);
-                        this.execSQLCreate("RENAME COLUMN dimensions.tmpValue to value", conn);
+                        migrator.execStatement("ALTER TABLE dimensions ADD COLUMN tmpValue CLOB", conn);
+                        migrator.execStatement("UPDATE dimensions SET tmpValue = value", conn);
+                        migrator.execStatement("ALTER TABLE dimensions ALTER COLUMN tmpValue NOT NULL", conn);
+                        migrator.execStatement("ALTER TABLE dimensions DROP COLUMN value", conn);
+                        migrator.execStatement("RENAME COLUMN dimensions.tmpValue to value", conn);
                     }
                 }
-
-                //Update for 4.2 - add lastSeen and appData to notifications table
-                ResultSet notificationProblems = dbMetadata.getColumns(null, null, "NOTIFICATIONPROBLEMS", "LASTSEEN");
+                dimensionColMeta.close();
+            }
+        });
+        //Update for 4.2 - add lastSeen and appData to notifications table
+        migrator.addMigration(5, "Add lastSeen and appData to notificationProblems", new SchemaMigrator.MigrationStep(){
+            public void apply(Connection conn, SchemaMigrator migrator) throws SQLException {
+                ResultSet notificationProblems = conn.getMetaData().getColumns(null, null, 
+                        migrator.getBackend().toMetadataName("notificationProblems"), 
+                        migrator.getBackend().toMetadataName("lastSeen"));
                 if(!notificationProblems.next()){
-                    this.execSQLCreate("ALTER TABLE notificationProblems ADD COLUMN lastSeen BIGINT", conn);
-                    this.execSQLCreate("ALTER TABLE notificationProblems ADD COLUMN appData VARCHAR(2000)", conn);
-                }
-                
-                //Create indexes - always rebuilds indexes which can help performance.
-                //    checks indexes
-                this.execSQLCreate("DROP INDEX checksTemplateId", conn);
-                this.execSQLCreate("CREATE INDEX checksTemplateId ON checks(checkTemplateId)", conn);
-                this.execSQLCreate("DROP INDEX checksGridName", conn);
-                this.execSQLCreate("CREATE INDEX checksGridName ON checks(gridName)", conn);
-                this.execSQLCreate("DROP INDEX checksRowName", conn);
-                this.execSQLCreate("CREATE INDEX checksRowName ON checks(rowName)", conn);
-                this.execSQLCreate("DROP INDEX checksColName", conn);
-                this.execSQLCreate("CREATE INDEX checksColName ON checks(colName)", conn);
-                this.execSQLCreate("DROP INDEX checksCheckName", conn);
-                this.execSQLCreate("CREATE INDEX checksCheckName ON checks(checkName)", conn);
-                this.execSQLCreate("DROP INDEX checksActive", conn);
-                this.execSQLCreate("CREATE INDEX checksActive ON checks(active)", conn);
-                //    results indexes
-                this.execSQLCreate("DROP INDEX resultsCheckId", conn);
-                this.execSQLCreate("CREATE INDEX resultsCheckId ON results(checkId)", conn);
-                this.execSQLCreate("DROP INDEX resultsCheckTime", conn);
-                //DESC supposedly helps with MAX
-                this.execSQLCreate("CREATE INDEX resultsCheckTime ON results(checkTime DESC)", conn);
-                //grid index
-                this.execSQLCreate("DROP INDEX gridsGridName", conn);
-                this.execSQLCreate("CREATE UNIQUE INDEX gridsGridName ON grids(gridName)", conn);
-                //dimensions
-                this.execSQLCreate("DROP INDEX dimensionsConfigIdent", conn);
-                this.execSQLCreate("CREATE INDEX dimensionsConfigIdent ON dimensions(configIdent)", conn);
-                //events
-                this.execSQLCreate("DROP INDEX eventsStart", conn);
-                this.execSQLCreate("CREATE INDEX eventsStart ON events(startTime)", conn);
-                this.execSQLCreate("DROP INDEX eventsEnd", conn);
-                this.execSQLCreate("CREATE INDEX eventsEnd ON events(endTime)", conn);
-                //eventChecks
-                this.execSQLCreate("DROP INDEX eventChecksEventId", conn);
-                this.execSQLCreate("CREATE INDEX eventChecksEventId ON eventChecks(eventId)", conn);
-                this.execSQLCreate("DROP INDEX eventChecksCheckId", conn);
-                this.execSQLCreate("CREATE INDEX eventChecksCheckId ON eventChecks(checkId)", conn);
-                //checkStateDefs
-                this.execSQLCreate("DROP INDEX checkStateDefsGridName", conn);
-                this.execSQLCreate("CREATE INDEX checkStateDefsGridName ON checkStateDefs(gridName)", conn);
-                //notifyName
-                this.execSQLCreate("DROP INDEX notifyName", conn);
-                this.execSQLCreate("CREATE UNIQUE INDEX notifyName ON notifications(name, type)", conn);
-                //notifyProblems
-                this.execSQLCreate("DROP INDEX notifyProblems", conn);
-                this.execSQLCreate("CREATE INDEX notifyProblems ON notificationProblems(notificationId)", conn);
-                //notifyChecksum
-                this.execSQLCreate("DROP INDEX notifyChecksum", conn);
-                this.execSQLCreate("CREATE INDEX notifyChecksum ON notificationProblems(checksum)", conn);
+                    migrator.execStatement("ALTER TABLE notificationProblems ADD COLUMN lastSeen BIGINT", conn);
+                    migrator.execStatement("ALTER TABLE notificationProblems ADD COLUMN appData VARCHAR(2000)", conn);
                 }
-            
-            conn.close();
-
-        }
-    }
-
-    private void execSQLCreate(String sql, Connection conn) throws SQLException{
-        try{
-            conn.prepareStatement(sql).execute();
-        }catch(SQLException e){
-            if("X0Y32".equals(e.getSQLState())){
-                log.debug("Cannot create table because it already exists: " + e.getMessage());
-            }else if("42X65".equals(e.getSQLState())){
-                log.debug("Cannot drop index because it does not exist: " + e.getMessage());
-            }else{
-                throw e;
+                notificationProblems.close();
             }
-        }
+        });
+        //nextCheckTime and checkStatus change with every result so only index active
+        migrator.addMigration(6, "Replace checksActiveNext index with checksActive",
+                "DROP INDEX checksActiveNext",
+                "CREATE INDEX checksActive ON checks(active)");
+        return migrator;
     }
 
     /**
-     * Updates map of checks that are currently being scheduled. Should be 
-     * called with schedule set to true when job is initially scheduled and 
-     * false when job completes. Prevent job from being scheduled twice.
-     * 
-     * @param checkId the id of the check to add/remove to map
-     * @param schedule if true will be added to the map, false it will be removed
+     * Returns the database data source that should be used to obtain 
+     * database connections
+     * @return database data source
      */
-    synchronized public void updateScheduledChecks(Integer checkId, Boolean schedule){
-        if(schedule){
-            this.scheduledChecks.put(checkId, schedule);
-        }else if(this.scheduledChecks.containsKey(checkId)){
-            this.scheduledChecks.remove(checkId);
-        }
+    public ComboPooledDataSource getDataSource(){
+        return this.dataSource;
     }
 
     /**
-     * Returns true if check is already scheduled, false otherwise
-     * @param checkId the id of the check to verify
-     * @return
+     * @return the database the data source connects to
      */
-    public boolean isCheckScheduled(Integer checkId){
-        return (this.scheduledChecks.containsKey(checkId) && this.scheduledChecks.get(checkId));
+    public StorageBackend getStorageBackend(){
+        return this.storageBackend;
     }
 
     /**
-     * Returns the database data source that should be used to obtain 
-     * database connections
-     * @return database data source
+     * @return the daily tables check results are stored in
      */
-    public ComboPooledDataSource getDataSource(){
-        return this.dataSource;
+    public ResultsStore getResultsStore(){
+        return this.resultsStore;
     }
 
     /**
@@ -762,10 +897,80 @@ public class MaDDashGlobals {
         return this.dbDataMaxAge;
     }
 
+    /**
+     * @return the maximum age in seconds of hourly and daily rollups. Negative disables rollups.
+     */
+    public long getDbRollupMaxAge() {
+        return this.dbRollupMaxAge;
+    }
+
+    /**
+     * @return the number of ids covered by each delete when cleaning the database. 0 deletes everything at once.
+     */
+    public int getDbCleanChunkSize() {
+        return this.dbCleanChunkSize;
+    }
+
+    /**
+     * @return the time in milliseconds to wait between deletes when cleaning the database
+     */
+    public long getDbCleanChunkPause() {
+        return this.dbCleanChunkPause;
+    }
+
     /**
      * @return the resourceManager
      */
     public ResourceManager getResourceManager() {
         return this.resourceManager;
     }
+
+    /**
+     * @return the dimensions of the current configuration
+     */
+    public DimensionIndex getDimensionIndex() {
+        return this.dimensionIndex;
+    }
+
+    /**
+     * @return the gridCache
+     */
+    public GridCache getGridCache() {
+        return this.gridCache;
+    }
+
+    /**
+     * @return the notificationEngine
+     */
+    public NotificationEngine getNotificationEngine() {
+        return this.notificationEngine;
+    }
+
+    /**
+     * @return the notificationProblemStore
+     */
+    public NotificationProblemStore getNotificationProblemStore() {
+        return this.notificationProblemStore;
+    }
+
+    /**
+     * @return the gridStreamPublisher
+     */
+    public GridStreamPublisher getGridStreamPublisher() {
+        return this.gridStreamPublisher;
+    }
+
+    /**
+     * @return the job that schedules checks or null if checks are not being run
+     */
+    public CheckSchedulerJob getCheckScheduler() {
+        return this.checkShedJob;
+    }
+
+    /**
+     * @return the thread that saves check results or null if checks are not being run
+     */
+    public ResultWriter getResultWriter() {
+        return this.resultWriter;
+    }
 }
@@ -7,6 +7,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -20,7 +21,9 @@ import javax.ws.rs.core.UriInfo;
 import org.apache.log4j.Logger;
 
 import net.es.maddash.checks.CheckConstants;
-import net.es.maddash.madalert.Madalert;
+import net.es.maddash.db.ResultsStore;
+import net.es.maddash.jobs.CheckSchedulerJob;
+import net.es.maddash.jobs.RollupJob;
 import net.es.maddash.madalert.Report;
 import net.es.maddash.utils.RESTUtil;
 import net.es.maddash.utils.URIUtil;
@@ -38,6 +41,13 @@ public class ResourceManager {
     private Logger log = Logger.getLogger(ResourceManager.class);
     private Logger netlogger = Logger.getLogger("netlogger");
     
+    final static public String HISTORY_RESOLUTION_RAW = "raw";
+    final static public String HISTORY_RESOLUTION_HOURLY = "hourly";
+    final static public String HISTORY_RESOLUTION_DAILY = "daily";
+    final static private long HISTORY_DEFAULT_WINDOW = 86400;//1 day
+    final static private long HISTORY_RAW_MAX_WINDOW = 172800;//2 days
+    final static private long HISTORY_HOURLY_MAX_WINDOW = 2678400;//31 days
+    
     /**
      * Returns a list of dashboards 
      * 
@@ -217,19 +227,19 @@ public class ResourceManager {
     }
     
     /**
-     * Returns the full grid specified.
+     * Returns the full grid specified along with its report. The JSON is 
+     * served from the grid cache and only rebuilt when the grid changes.
      * 
      * @param gridId the ID of the grid to query
+     * @return the grid as a serialized JSON string
      */
-    public JsonObject getGrid(String gridId, UriInfo uriInfo) {
+    public String getGrid(String gridId) {
         NetLogger netLog = NetLogger.getTlogger();
         netlogger.info(netLog.start("maddash.ResourceManager.getGrid"));
-        JsonObjectBuilder json = null;
+        String json = null;
         try {
             String gridName = URIUtil.decodeUriPart(gridId);
-            DBMesh mesh = new DBMesh(gridName, uriInfo.getPath());
-            Report report = Madalert.lookupRule(gridName).createReport(mesh);
-            json = mesh.toJsonBuilder().add("report", report.toJson());
+            json = MaDDashGlobals.getInstance().getGridCache().getMesh(gridName).toJsonString();
         } catch (Exception e) {
             netlogger.error(netLog.error("maddash.ResourceManager.getGrid", e.getMessage()));
             log.error("Error handling request: " + e.getMessage());
@@ -237,6 +247,32 @@ public class ResourceManager {
             throw new RuntimeException(e.getMessage());
         }
         netlogger.info(netLog.end("maddash.ResourceManager.getGrid"));
+        return json;
+    }
+
+    /**
+     * Returns the checks in a grid that changed since the given version. 
+     * 
+     * @param gridId the ID of the grid to query
+     * @param since the version tag the client last saw. If null or not 
+     *     recognized the client is told to reload the full grid.
+     * @return JSON describing the changes
+     */
+    public JsonObject getGridChanges(String gridId, String since) {
+        NetLogger netLog = NetLogger.getTlogger();
+        netlogger.info(netLog.start("maddash.ResourceManager.getGridChanges"));
+        JsonObjectBuilder json = null;
+        try {
+            String gridName = URIUtil.decodeUriPart(gridId);
+            DBMesh mesh = MaDDashGlobals.getInstance().getGridCache().getMesh(gridName);
+            json = mesh.getChangesSince(GridCache.parseVersionTag(since));
+        } catch (Exception e) {
+            netlogger.error(netLog.error("maddash.ResourceManager.getGridChanges", e.getMessage()));
+            log.error("Error handling request: " + e.getMessage());
+            e.printStackTrace();
+            throw new RuntimeException(e.getMessage());
+        }
+        netlogger.info(netLog.end("maddash.ResourceManager.getGridChanges"));
         return json.build();
     }
 
@@ -358,10 +394,13 @@ public class ResourceManager {
      * @param colId the id of the column
      * @param checkId the id of the check
      * @param uriInfo the URI used to request this object
+     * @param pageResults the number of history results per page
+     * @param page the page of history to return. Ignored if a cursor is given.
+     * @param cursor the historyNextCursor of the previous page or null for the first page
      * @return a JSON representation of the row
      */
     public JsonObject getCheck(String gridId, String rowId, String colId, 
-            String checkId, UriInfo uriInfo, int pageResults, int page) {
+            String checkId, UriInfo uriInfo, int pageResults, int page, String cursor) {
         Connection conn = null;
         NetLogger netLog = NetLogger.getTlogger();
         JsonObjectBuilder checkJson = Json.createObjectBuilder();
@@ -451,63 +490,116 @@ public class ResourceManager {
             }
             
             //get history
-            String pageCountSql = "SELECT COUNT(*) FROM results WHERE checkId IN (";
-            String historySql = "SELECT checkTime, returnCode, returnMessage, " +
-                "returnParams, resultCount, checkStatus FROM results WHERE checkId IN ( ";
+            String checkIdList = "";
             boolean first = true;
             for(int checkDBId : checkIds){
                 if(!first){
-                    historySql += ", ";
-                    pageCountSql += ", ";;
+                    checkIdList += ", ";
                 }else{
                     first = false;
                 }
-                historySql += checkDBId;
-                pageCountSql += checkDBId;
+                checkIdList += checkDBId;
             }
-            historySql += ") ORDER BY checkTime DESC OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
-            pageCountSql += ")";
             if(pageResults <= 0){
                 throw new RuntimeException("numResults parameter must be greater than 0");
             }
             if(page < 0){
                 throw new RuntimeException("The page parameter must be greater than or equal to 0");
             }
-            log.debug(historySql);
             
-            //get page count
-            ResultSet pageCountResults = conn.prepareStatement(pageCountSql).executeQuery();
-            if(pageCountResults.next()){
-               int rowCount = pageCountResults.getInt(1);
-               int pageCount = rowCount/pageResults + ((rowCount%pageResults) == 0 ? 0 : 1);
-               checkJson.add("historyPageCount", pageCount);
+            //get page count. results are split into daily tables, newest first
+            ResultsStore resultsStore = MaDDashGlobals.getInstance().getResultsStore();
+            List<String> buckets = resultsStore.listBuckets(0);
+            int[] bucketCounts = new int[buckets.size()];
+            int rowCount = 0;
+            for(int i = 0; i < buckets.size(); i++){
+                bucketCounts[i] = resultsStore.countResults(buckets.get(i), checkIdList, conn);
+                rowCount += bucketCounts[i];
             }
+            int pageCount = rowCount/pageResults + ((rowCount%pageResults) == 0 ? 0 : 1);
+            checkJson.add("historyPageCount", pageCount);
             checkJson.add("historyResultPerPage", pageResults);
+            checkJson.add("historyResultCount", rowCount);
             
-            PreparedStatement historyStmt = conn.prepareStatement(historySql);
-            historyStmt.setInt(1, (pageResults * page));
-            historyStmt.setInt(2, pageResults);
-            ResultSet historyResults = historyStmt.executeQuery();
-            while(historyResults.next()){
-                JsonObjectBuilder resultJson = Json.createObjectBuilder();
-                resultJson.add("time", historyResults.getLong(1));
-                resultJson.add("returnCode", historyResults.getInt(2));
-                resultJson.add("message", historyResults.getString(3));
-                JsonObject jsonParams = null;
-                if(historyResults.getString(4) != null && 
-                        !historyResults.equals(CheckConstants.EMPTY_PARAMS)){
-                    jsonParams = Json.createReader(new StringReader(historyResults.getString(4))).readObject();
+            /*
+             * A cursor picks up after the last result of the previous page using 
+             * (checkTime, id) so the database seeks straight to it. Without one 
+             * skip whole tables using the counts and only offset within one table.
+             */
+            int firstBucket = 0;
+            int offset = 0;
+            long cursorTime = 0;
+            long cursorId = 0;
+            if(cursor != null && !cursor.isEmpty()){
+                String[] cursorParts = cursor.split("\\.");
+                if(cursorParts.length != 3 || !buckets.contains(cursorParts[0])){
+                    throw new RuntimeException("Invalid cursor parameter");
+                }
+                try{
+                    cursorTime = Long.parseLong(cursorParts[1]);
+                    cursorId = Long.parseLong(cursorParts[2]);
+                }catch(NumberFormatException e){
+                    throw new RuntimeException("Invalid cursor parameter");
+                }
+                firstBucket = buckets.indexOf(cursorParts[0]);
+            }else{
+                offset = pageResults * page;
+                while(firstBucket < buckets.size() && offset >= bucketCounts[firstBucket]){
+                    offset -= bucketCounts[firstBucket];
+                    firstBucket++;
                 }
-                resultJson.add("returnParams", jsonParams);
-                resultJson.add("returnCodeCount", historyResults.getInt(5));
-                resultJson.add("status", historyResults.getInt(6));
-                historyJson.add(resultJson);
+            }
+            
+            //only read the tables that hold the requested page
+            int remaining = pageResults;
+            boolean moreResults = false;
+            String lastResult = null;
+            for(int i = firstBucket; i < buckets.size() && !moreResults; i++){
+                boolean afterCursor = (cursorTime > 0 && i == firstBucket);
+                String historySql = "SELECT checkTime, returnCode, returnMessage, " +
+                    "returnParams, resultCount, checkStatus, id FROM " + buckets.get(i) + 
+                    " WHERE checkId IN (" + checkIdList + ")" + 
+                    (afterCursor ? " AND (checkTime < ? OR (checkTime = ? AND id < ?))" : "") + 
+                    " ORDER BY checkTime DESC, id DESC OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+                log.debug(historySql);
+                PreparedStatement historyStmt = conn.prepareStatement(historySql);
+                int paramIndex = 1;
+                if(afterCursor){
+                    historyStmt.setLong(paramIndex++, cursorTime);
+                    historyStmt.setLong(paramIndex++, cursorTime);
+                    historyStmt.setLong(paramIndex++, cursorId);
+                }
+                historyStmt.setInt(paramIndex++, offset);
+                //one extra row tells us if there is another page
+                historyStmt.setInt(paramIndex++, remaining + 1);
+                offset = 0;
+                ResultSet historyResults = historyStmt.executeQuery();
+                while(historyResults.next()){
+                    if(remaining == 0){
+                        moreResults = true;
+                        break;
+                    }
+                    historyJson.add(this.historyResultJson(historyResults));
+                    lastResult = buckets.get(i) + "." + historyResults.getLong(1) + 
+                            "." + historyResults.getLong(7);
+                    remaining--;
+                }
+                historyStmt.close();
+                //a full page that ends a table continues in the next one that has results
+                if(remaining == 0){
+                    for(int j = i + 1; j < buckets.size() && !moreResults; j++){
+                        moreResults = (bucketCounts[j] > 0);
+                    }
+                }
+            }
+            if(moreResults && lastResult != null){
+                checkJson.add("historyNextCursor", lastResult);
             }
             checkJson.add("history", historyJson);
             
             //generate report
-            DBMesh mesh = new DBMesh(gridName, uriInfo.getPath());
-            JsonObject report = Madalert.lookupRule(gridName).createReport(mesh).toJson();
+            DBMesh mesh = MaDDashGlobals.getInstance().getGridCache().getMesh(gridName);
+            JsonObject report = mesh.getReport();
             checkJson.add("globalReport", report.getJsonObject("global"));
             checkJson.add("rowReport", report.getJsonObject("sites").getJsonObject(mesh.lookupLabel(rowName)));
             checkJson.add("colReport", report.getJsonObject("sites").getJsonObject(mesh.lookupLabel(colName)));
@@ -529,6 +621,229 @@ public class ResourceManager {
         
     }
 
+    /**
+     * Returns the history of a check over a time range. Picks raw results, hourly 
+     * rollups or daily rollups depending on how long the range is unless a 
+     * resolution is requested. Raw ranges longer than two days are shortened to 
+     * the last two days of the range.
+     * 
+     * @param gridId the id of the grid
+     * @param rowId the id of the row
+     * @param colId the id of the column
+     * @param checkId the id of the check
+     * @param start the start of the range in seconds. 0 for one day before the end.
+     * @param end the end of the range in seconds. 0 for now.
+     * @param resolution one of raw, hourly or daily. null to pick automatically.
+     * @return a JSON representation of the history or null if the check is not found
+     */
+    public JsonObject getCheckHistory(String gridId, String rowId, String colId, 
+            String checkId, long start, long end, String resolution) {
+        Connection conn = null;
+        NetLogger netLog = NetLogger.getTlogger();
+        JsonObjectBuilder historyJson = Json.createObjectBuilder();
+        try {
+            netlogger.info(netLog.start("maddash.ResourceManager.getCheckHistory"));
+            String gridName = URIUtil.decodeUriPart(gridId);
+            String rowName = URIUtil.decodeUriPart(rowId);
+            String colName = URIUtil.decodeUriPart(colId);
+            String checkName = URIUtil.decodeUriPart(checkId);
+            long now = System.currentTimeMillis()/1000;
+            if(end <= 0){
+                end = now;
+            }
+            if(start <= 0){
+                start = end - HISTORY_DEFAULT_WINDOW;
+            }
+            if(start >= end){
+                throw new RuntimeException("The start parameter must be less than the end parameter");
+            }
+            if(resolution == null || resolution.isEmpty()){
+                resolution = this.pickHistoryResolution(start, end, now);
+            }
+            //keep raw requests small, clients page back through longer ranges
+            if(HISTORY_RESOLUTION_RAW.equals(resolution) && (end - start) > HISTORY_RAW_MAX_WINDOW){
+                start = end - HISTORY_RAW_MAX_WINDOW;
+            }
+            
+            conn = MaDDashGlobals.getInstance().getDataSource().getConnection();
+            PreparedStatement stmt = conn.prepareStatement("SELECT id FROM checks WHERE " +
+                    "gridName=? AND rowName=? AND colName=? AND checkName=?");
+            stmt.setString(1, gridName);
+            stmt.setString(2, rowName);
+            stmt.setString(3, colName);
+            stmt.setString(4, checkName);
+            ResultSet checkDetails = stmt.executeQuery();
+            String checkIdList = "";
+            while(checkDetails.next()){
+                if(!checkIdList.isEmpty()){
+                    checkIdList += ", ";
+                }
+                checkIdList += checkDetails.getInt(1);
+            }
+            //verify check was found
+            if(checkIdList.isEmpty()){
+                netlogger.info(netLog.end("maddash.ResourceManager.getCheckHistory"));
+                conn.close();
+                return null;
+            }
+            
+            historyJson.add("gridName", gridName);
+            historyJson.add("rowName", rowName);
+            historyJson.add("colName", colName);
+            historyJson.add("checkName", checkName);
+            historyJson.add("start", start);
+            historyJson.add("end", end);
+            historyJson.add("resolution", resolution);
+            if(HISTORY_RESOLUTION_RAW.equals(resolution)){
+                historyJson.add("history", this.getRawHistory(checkIdList, start, end, conn));
+            }else if(HISTORY_RESOLUTION_HOURLY.equals(resolution)){
+                historyJson.add("history", this.getRollupHistory(checkIdList, 
+                        RollupJob.RESOLUTION_HOURLY, start, end, conn));
+            }else if(HISTORY_RESOLUTION_DAILY.equals(resolution)){
+                historyJson.add("history", this.getRollupHistory(checkIdList, 
+                        RollupJob.RESOLUTION_DAILY, start, end, conn));
+            }else{
+                throw new RuntimeException("The resolution parameter must be " + HISTORY_RESOLUTION_RAW + 
+                        ", " + HISTORY_RESOLUTION_HOURLY + " or " + HISTORY_RESOLUTION_DAILY);
+            }
+            
+            conn.close();
+        }catch(Exception e){
+            if(conn != null){
+                try {
+                    conn.close();
+                } catch (SQLException e1) {}
+            }
+            netlogger.error(netLog.end("maddash.ResourceManager.getCheckHistory"));
+            log.error("Error handling request: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+        
+        netlogger.info(netLog.end("maddash.ResourceManager.getCheckHistory"));
+        return historyJson.build();
+    }
+    
+    /*
+     * Raw results are only used for short ranges still within their retention. 
+     * Hourly rollups cover about a month and daily rollups anything longer.
+     */
+    private String pickHistoryResolution(long start, long end, long now){
+        long dbDataMaxAge = MaDDashGlobals.getInstance().getDbDataMaxAge();
+        boolean rawAvailable = (dbDataMaxAge < 0 || start >= now - dbDataMaxAge);
+        if(rawAvailable && (end - start) <= HISTORY_RAW_MAX_WINDOW){
+            return HISTORY_RESOLUTION_RAW;
+        }else if((end - start) <= HISTORY_HOURLY_MAX_WINDOW){
+            return HISTORY_RESOLUTION_HOURLY;
+        }
+        return HISTORY_RESOLUTION_DAILY;
+    }
+    
+    private JsonArrayBuilder getRawHistory(String checkIdList, long start, long end, 
+            Connection conn) throws SQLException{
+        JsonArrayBuilder historyJson = Json.createArrayBuilder();
+        //oldest table first so results come out in time order
+        List<String> buckets = new ArrayList<String>(
+                MaDDashGlobals.getInstance().getResultsStore().listBuckets(start, end));
+        Collections.reverse(buckets);
+        for(String bucket : buckets){
+            PreparedStatement historyStmt = conn.prepareStatement("SELECT checkTime, returnCode, " +
+                    "returnMessage, returnParams, resultCount, checkStatus FROM " + bucket + 
+                    " WHERE checkId IN (" + checkIdList + ") AND checkTime >= ? AND checkTime < ? " +
+                    "ORDER BY checkTime");
+            historyStmt.setLong(1, start);
+            historyStmt.setLong(2, end);
+            ResultSet historyResults = historyStmt.executeQuery();
+            while(historyResults.next()){
+                historyJson.add(this.historyResultJson(historyResults));
+            }
+            historyStmt.close();
+        }
+        return historyJson;
+    }
+    
+    /*
+     * Converts a result row selected as checkTime, returnCode, returnMessage, 
+     * returnParams, resultCount, checkStatus
+     */
+    private JsonObjectBuilder historyResultJson(ResultSet historyResults) throws SQLException{
+        JsonObjectBuilder resultJson = Json.createObjectBuilder();
+        resultJson.add("time", historyResults.getLong(1));
+        resultJson.add("returnCode", historyResults.getInt(2));
+        resultJson.add("message", historyResults.getString(3));
+        JsonObject jsonParams = null;
+        if(historyResults.getString(4) != null && 
+                !historyResults.getString(4).equals(CheckConstants.EMPTY_PARAMS)){
+            jsonParams = Json.createReader(new StringReader(historyResults.getString(4))).readObject();
+        }
+        resultJson.add("returnParams", jsonParams);
+        resultJson.add("returnCodeCount", historyResults.getInt(5));
+        resultJson.add("status", historyResults.getInt(6));
+        return resultJson;
+    }
+    
+    private JsonArrayBuilder getRollupHistory(String checkIdList, int resolution, long start, 
+            long end, Connection conn) throws SQLException{
+        //include the period the start falls in
+        long periodStart = start - start % resolution;
+        
+        //numeric stats of each period
+        HashMap<Long, JsonObjectBuilder> statsMap = new HashMap<Long, JsonObjectBuilder>();
+        PreparedStatement statsStmt = conn.prepareStatement("SELECT periodStart, statName, " +
+                "sampleCount, statMin, statMax, statSum FROM resultRollupStats WHERE checkId IN (" + 
+                checkIdList + ") AND resolution=? AND periodStart >= ? AND periodStart < ?");
+        statsStmt.setInt(1, resolution);
+        statsStmt.setLong(2, periodStart);
+        statsStmt.setLong(3, end);
+        ResultSet statsResults = statsStmt.executeQuery();
+        while(statsResults.next()){
+            JsonObjectBuilder periodStats = statsMap.get(statsResults.getLong(1));
+            if(periodStats == null){
+                periodStats = Json.createObjectBuilder();
+                statsMap.put(statsResults.getLong(1), periodStats);
+            }
+            int count = statsResults.getInt(3);
+            periodStats.add(statsResults.getString(2), Json.createObjectBuilder()
+                    .add("count", count)
+                    .add("min", statsResults.getDouble(4))
+                    .add("max", statsResults.getDouble(5))
+                    .add("avg", (count > 0 ? statsResults.getDouble(6)/count : 0)));
+        }
+        statsStmt.close();
+        
+        JsonArrayBuilder historyJson = Json.createArrayBuilder();
+        PreparedStatement rollupStmt = conn.prepareStatement("SELECT periodStart, okCount, " +
+                "warningCount, criticalCount, unknownCount, otherCount, transitionCount, " +
+                "firstTransition, lastTransition, lastStatus FROM resultRollups WHERE checkId IN (" + 
+                checkIdList + ") AND resolution=? AND periodStart >= ? AND periodStart < ? " +
+                "ORDER BY periodStart");
+        rollupStmt.setInt(1, resolution);
+        rollupStmt.setLong(2, periodStart);
+        rollupStmt.setLong(3, end);
+        ResultSet rollupResults = rollupStmt.executeQuery();
+        while(rollupResults.next()){
+            JsonObjectBuilder rollupJson = Json.createObjectBuilder();
+            rollupJson.add("time", rollupResults.getLong(1));
+            rollupJson.add("duration", resolution);
+            rollupJson.add("counts", Json.createObjectBuilder()
+                    .add("ok", rollupResults.getInt(2))
+                    .add("warning", rollupResults.getInt(3))
+                    .add("critical", rollupResults.getInt(4))
+                    .add("unknown", rollupResults.getInt(5))
+                    .add("other", rollupResults.getInt(6)));
+            rollupJson.add("transitionCount", rollupResults.getInt(7));
+            if(rollupResults.getInt(7) > 0){
+                rollupJson.add("firstTransition", rollupResults.getLong(8));
+                rollupJson.add("lastTransition", rollupResults.getLong(9));
+            }
+            rollupJson.add("lastStatus", rollupResults.getInt(10));
+            JsonObjectBuilder periodStats = statsMap.get(rollupResults.getLong(1));
+            rollupJson.add("stats", (periodStats != null ? periodStats : Json.createObjectBuilder()));
+            historyJson.add(rollupJson);
+        }
+        rollupStmt.close();
+        return historyJson;
+    }
+
     public JsonObject updateSchedule(JsonObject request) {
         Connection conn = null;
         NetLogger netLog = NetLogger.getTlogger();
@@ -554,6 +869,12 @@ public class ResourceManager {
             }
             int rowCount = stmt.executeUpdate();
             
+            //scheduler keeps next check times in memory so have it pick up the changes
+            CheckSchedulerJob checkScheduler = MaDDashGlobals.getInstance().getCheckScheduler();
+            if(rowCount > 0 && checkScheduler != null){
+                checkScheduler.reload();
+            }
+            
             //build JSON response
             if(rowCount == 0){
                 response.add("status", -1);
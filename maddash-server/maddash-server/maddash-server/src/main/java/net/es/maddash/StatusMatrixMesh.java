@@ -0,0 +1,130 @@
+package net.es.maddash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import net.es.maddash.checks.CheckConstants;
+import net.es.maddash.madalert.BaseMesh;
+
+/**
+ * A mesh holding only the status of each check, used to evaluate madalert rules.
+ * Statuses are kept in one flat array indexed by row, column and check, and which
+ * row and column pairs have checks is kept in a bit set, so rules can probe the
+ * mesh as often as they like without looking anything up in JSON. A status version
+ * is kept so callers can tell when a report needs to be created again. Not thread-safe,
+ * callers that update it must hold their own lock while reports are created.
+ */
+public class StatusMatrixMesh extends BaseMesh{
+    private String name;
+    private List<String> rowNames;
+    private List<String> columnNames;
+    private List<String> statusLabels;
+    private int columnCount;
+    private int checkCount;
+    //statuses[(row * columnCount + column) * checkCount + check]
+    private short[] statuses;
+    //bit row * columnCount + column is set if the row has checks for the column
+    private BitSet cells;
+    //incremented each time a status changes
+    private long statusVersion;
+
+    /**
+     * Creates a mesh where no row has checks for any column
+     *
+     * @param name the name of the grid
+     * @param rowNames the display names of the rows
+     * @param columnNames the display names of the columns
+     * @param checkCount the number of checks in each cell
+     * @param statusLabels the labels of each status
+     */
+    public StatusMatrixMesh(String name, List<String> rowNames, List<String> columnNames,
+            int checkCount, List<String> statusLabels){
+        this.name = name;
+        this.rowNames = Collections.unmodifiableList(new ArrayList<String>(rowNames));
+        this.columnNames = Collections.unmodifiableList(new ArrayList<String>(columnNames));
+        this.statusLabels = Collections.unmodifiableList(new ArrayList<String>(statusLabels));
+        this.columnCount = columnNames.size();
+        this.checkCount = checkCount;
+        this.statuses = new short[rowNames.size() * this.columnCount * checkCount];
+        Arrays.fill(this.statuses, (short) CheckConstants.RESULT_NOTRUN);
+        this.cells = new BitSet(rowNames.size() * this.columnCount);
+    }
+
+    /**
+     * Sets the status of a check and marks its row as having checks for its column
+     *
+     * @param row the index of the row
+     * @param column the index of the column
+     * @param check the index of the check
+     * @param status the status of the check
+     * @return true if the status or cell changed, false if it was already set
+     */
+    public boolean setStatus(int row, int column, int check, int status){
+        if(status < Short.MIN_VALUE || status > Short.MAX_VALUE){
+            throw new IllegalArgumentException("Status " + status + " out of range");
+        }
+        int cell = row * this.columnCount + column;
+        int index = cell * this.checkCount + check;
+        if(this.statuses[index] == status && this.cells.get(cell)){
+            return false;
+        }
+        this.statuses[index] = (short) status;
+        this.cells.set(cell);
+        this.statusVersion++;
+        return true;
+    }
+
+    /**
+     * @return a number that changes each time the status of a check changes
+     */
+    public long getStatusVersion(){
+        return this.statusVersion;
+    }
+
+    @Override
+    public String getLocation() {
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public List<String> getColumnNames() {
+        return this.columnNames;
+    }
+
+    @Override
+    public List<String> getRowNames() {
+        return this.rowNames;
+    }
+
+    @Override
+    public int getCheckCount() {
+        return this.checkCount;
+    }
+
+    @Override
+    public List<String> getStatusLabels() {
+        return this.statusLabels;
+    }
+
+    /**
+     * Returns the status of a check. Checks missing from a cell that has
+     * others are reported as not run.
+     */
+    @Override
+    public int statusFor(int row, int column, int check) {
+        return this.statuses[(row * this.columnCount + column) * this.checkCount + check];
+    }
+
+    @Override
+    public boolean hasColumn(int row, int column) {
+        return this.cells.get(row * this.columnCount + column);
+    }
+}
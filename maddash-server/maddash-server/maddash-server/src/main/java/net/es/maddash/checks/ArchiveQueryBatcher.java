@@ -0,0 +1,109 @@
+package net.es.maddash.checks;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shares the result of an archive query between all the checks that make the same
+ * query within a short window. The first check to ask runs the query and any others
+ * that ask while it is running, or before the window ends, wait for and reuse its
+ * result. In a full mesh this means the checks against an archive make one bulk
+ * query instead of one per row and column pair.
+ */
+public class ArchiveQueryBatcher {
+    static private Logger log = Logger.getLogger(ArchiveQueryBatcher.class);
+    static private ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+    final static private int SWEEP_SIZE = 1000;
+
+    /**
+     * Returns the result of a query, running it only if no other check has
+     * within the window
+     *
+     * @param key identifies the query, such as its URL
+     * @param window the number of seconds a result can be reused
+     * @param timeout the number of milliseconds to wait for the result
+     * @param query runs the query if needed
+     * @return the result of the query
+     * @throws Exception if the query failed or did not finish in time
+     */
+    static public <T> T get(String key, int window, long timeout, Callable<T> query) throws Exception{
+        long now = System.currentTimeMillis();
+        Batch batch = null;
+        boolean runQuery = false;
+        while(true){
+            batch = batches.get(key);
+            //reuse a query still running even if its window has passed
+            if(batch != null && (batch.expires > now || !batch.task.isDone())){
+                break;
+            }
+            Batch newBatch = new Batch(new FutureTask<T>(query), now + window * 1000L);
+            if(batch == null ? batches.putIfAbsent(key, newBatch) == null : batches.replace(key, batch, newBatch)){
+                batch = newBatch;
+                runQuery = true;
+                break;
+            }
+        }
+        if(runQuery && batches.size() > SWEEP_SIZE){
+            sweep(now);
+        }
+
+        if(runQuery){
+            log.debug("Running batched query " + key);
+            batch.task.run();
+        }
+        try{
+            return ArchiveQueryBatcher.<T>resultOf(batch.task.get(timeout, TimeUnit.MILLISECONDS));
+        }catch(ExecutionException e){
+            //don't let other checks reuse a failure
+            batches.remove(key, batch);
+            if(e.getCause() instanceof Exception){
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets all shared results
+     */
+    static public void clear(){
+        batches.clear();
+    }
+
+    /*
+     * Batches are found by key and callers that give the same key make the same
+     * query, so the result of a batch always has the type its caller expects.
+     */
+    @SuppressWarnings("unchecked")
+    static private <T> T resultOf(Object result){
+        return (T) result;
+    }
+
+    static private void sweep(long now){
+        Iterator<Map.Entry<String, Batch>> iter = batches.entrySet().iterator();
+        while(iter.hasNext()){
+            Batch batch = iter.next().getValue();
+            if(batch.expires <= now && batch.task.isDone()){
+                iter.remove();
+            }
+        }
+    }
+
+    static private class Batch{
+        FutureTask<?> task;
+        long expires;
+
+        Batch(FutureTask<?> task, long expires){
+            this.task = task;
+            this.expires = expires;
+        }
+    }
+}
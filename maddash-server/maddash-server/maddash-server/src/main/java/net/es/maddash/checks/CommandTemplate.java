@@ -0,0 +1,218 @@
+package net.es.maddash.checks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A check parameter template such as a command or URL containing variables like
+ * %row, %col, %row.<i>name</i> and %col.<i>name</i>. A template is split into literal
+ * text and variable references once and then rendered in a single pass. Where more
+ * than one variable could match at a position the longest one is used, so %maUrlReverse
+ * is not mistaken for %maUrl. Templates are cached by their text and rendered commands
+ * by template, row and column until the configuration is reloaded.
+ */
+public class CommandTemplate {
+    static private ConcurrentHashMap<String, CommandTemplate> templateCache = new ConcurrentHashMap<String, CommandTemplate>();
+    static private ConcurrentHashMap<String, String> renderCache = new ConcurrentHashMap<String, String>();
+
+    final static private int MAX_CACHE_SIZE = 100000;
+    final static private int SCOPE_VAR = 0;
+    final static private int SCOPE_ROW = 1;
+    final static private int SCOPE_COL = 2;
+    final static private String ROW_PREFIX = "row.";
+    final static private String COL_PREFIX = "col.";
+
+    private String template;
+    //literals[i] comes before tokens[i] and the last literal ends the template
+    private String[] literals;
+    private Token[] tokens;
+
+    private CommandTemplate(String template){
+        this.template = template;
+        List<String> literals = new ArrayList<String>();
+        List<Token> tokens = new ArrayList<Token>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while(i < template.length()){
+            char c = template.charAt(i);
+            int runEnd = i + 1;
+            while(c == '%' && runEnd < template.length() && isNameChar(template.charAt(runEnd))){
+                runEnd++;
+            }
+            if(runEnd == i + 1){
+                literal.append(c);
+                i++;
+                continue;
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            tokens.add(new Token(template.substring(i + 1, runEnd)));
+            i = runEnd;
+        }
+        literals.add(literal.toString());
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.tokens = tokens.toArray(new Token[tokens.size()]);
+    }
+
+    /**
+     * Returns the parsed form of the given template text
+     *
+     * @param template the template text
+     * @return the parsed template
+     */
+    static public CommandTemplate compile(String template){
+        CommandTemplate compiled = templateCache.get(template);
+        if(compiled == null){
+            if(templateCache.size() >= MAX_CACHE_SIZE){
+                templateCache.clear();
+            }
+            compiled = new CommandTemplate(template);
+            templateCache.put(template, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Forgets all parsed templates and rendered commands. Called when the
+     * configuration is reloaded since dimension variables may have changed.
+     */
+    static public void clearCache(){
+        templateCache.clear();
+        renderCache.clear();
+    }
+
+    /**
+     * Renders the template with only the row and column names and variables. The
+     * result is cached since these only change when the configuration is reloaded.
+     *
+     * @param rowName the name of the row, replaces %row
+     * @param colName the name of the column, replaces %col
+     * @param rowVars replace %row.<i>name</i>
+     * @param colVars replace %col.<i>name</i>
+     * @return the rendered template
+     */
+    public String renderCached(String rowName, String colName, Map<String,String> rowVars, Map<String,String> colVars){
+        if(this.tokens.length == 0){
+            return this.template;
+        }
+        String cacheKey = this.template + '\u0000' + rowName + '\u0000' + colName;
+        String rendered = renderCache.get(cacheKey);
+        if(rendered == null){
+            HashMap<String,String> vars = new HashMap<String,String>();
+            vars.put("%row", rowName);
+            vars.put("%col", colName);
+            rendered = this.render(vars, rowVars, colVars, false);
+            if(renderCache.size() >= MAX_CACHE_SIZE){
+                renderCache.clear();
+            }
+            renderCache.put(cacheKey, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Renders the template
+     *
+     * @param vars variables named with their leading %, such as %maUrl
+     * @param rowVars replace %row.<i>name</i>
+     * @param colVars replace %col.<i>name</i>
+     * @param clearUnknown if true remove %row.<i>name</i> and %col.<i>name</i> references
+     *      that have no variable, otherwise leave them as is
+     * @return the rendered template
+     */
+    public String render(Map<String,String> vars, Map<String,String> rowVars,
+            Map<String,String> colVars, boolean clearUnknown){
+        if(this.tokens.length == 0){
+            return this.template;
+        }
+        StringBuilder rendered = new StringBuilder(this.template.length() + 64);
+        for(int i = 0; i < this.tokens.length; i++){
+            rendered.append(this.literals[i]);
+            this.tokens[i].render(rendered, vars, rowVars, colVars, clearUnknown);
+        }
+        rendered.append(this.literals[this.tokens.length]);
+        return rendered.toString();
+    }
+
+    static private boolean isNameChar(char c){
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    /*
+     * A % followed by a run of name characters. The possible variable names are
+     * worked out when parsing so rendering is only map lookups.
+     */
+    private class Token {
+        String run;
+        //candidates longest first, with row and column variables before others of the same length
+        int[] scopes;
+        String[] keys;
+        int[] lengths;
+        //where text remaining after an unknown %row.name or %col.name starts
+        int leftoverStart;
+
+        Token(String run){
+            this.run = run;
+            List<Integer> scopes = new ArrayList<Integer>();
+            List<String> keys = new ArrayList<String>();
+            List<Integer> lengths = new ArrayList<Integer>();
+            for(int len = run.length(); len > 0; len--){
+                String name = run.substring(0, len);
+                if(name.startsWith(ROW_PREFIX) && len > ROW_PREFIX.length()){
+                    scopes.add(SCOPE_ROW);
+                    keys.add(name.substring(ROW_PREFIX.length()));
+                    lengths.add(len);
+                }else if(name.startsWith(COL_PREFIX) && len > COL_PREFIX.length()){
+                    scopes.add(SCOPE_COL);
+                    keys.add(name.substring(COL_PREFIX.length()));
+                    lengths.add(len);
+                }
+                scopes.add(SCOPE_VAR);
+                keys.add("%" + name);
+                lengths.add(len);
+            }
+            this.scopes = new int[scopes.size()];
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.lengths = new int[lengths.size()];
+            for(int i = 0; i < this.scopes.length; i++){
+                this.scopes[i] = scopes.get(i);
+                this.lengths[i] = lengths.get(i);
+            }
+
+            this.leftoverStart = 0;
+            if((run.startsWith(ROW_PREFIX) || run.startsWith(COL_PREFIX)) && run.length() > ROW_PREFIX.length()){
+                this.leftoverStart = ROW_PREFIX.length();
+                while(this.leftoverStart < run.length() && run.charAt(this.leftoverStart) != '.'){
+                    this.leftoverStart++;
+                }
+            }
+        }
+
+        void render(StringBuilder rendered, Map<String,String> vars, Map<String,String> rowVars,
+                Map<String,String> colVars, boolean clearUnknown){
+            for(int i = 0; i < this.keys.length; i++){
+                //unknown row and column variables are cleared before others are tried
+                if(clearUnknown && this.leftoverStart > 0 && this.scopes[i] == SCOPE_VAR){
+                    break;
+                }
+                Map<String,String> scopeVars = (this.scopes[i] == SCOPE_ROW ? rowVars :
+                    (this.scopes[i] == SCOPE_COL ? colVars : vars));
+                String value = (scopeVars == null ? null : scopeVars.get(this.keys[i]));
+                if(value != null){
+                    rendered.append(value);
+                    rendered.append(this.run, this.lengths[i], this.run.length());
+                    return;
+                }
+            }
+            if(clearUnknown && this.leftoverStart > 0){
+                rendered.append(this.run, this.leftoverStart, this.run.length());
+            }else{
+                rendered.append('%');
+                rendered.append(this.run);
+            }
+        }
+    }
+}
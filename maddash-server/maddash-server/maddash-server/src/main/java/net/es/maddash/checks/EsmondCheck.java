@@ -0,0 +1,417 @@
+package net.es.maddash.checks;
+
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import net.es.maddash.NetLogger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Check that queries a perfSONAR esmond measurement archive directly and compares
+ * the results against thresholds in-process. It replaces running check_throughput.pl
+ * or check_owdelay.pl through {@link PSNagiosCheck} without starting a process per
+ * check. Connections to each archive are pooled and shared by all checks. Parameters
+ * are:
+ *      metric: one of throughput (Gbps), loss (percent of packets) or latency (ms)
+ *      maUrl: the MA URL template, as a string or map like PSNagiosCheck
+ *      graphUrl: template of a URL to a graph of the data
+ *      source: template of the source of the test. Defaults to %row.
+ *      destination: template of the destination of the test. Defaults to %col.
+ *      timeRange: seconds of data to average. Defaults to 3600.
+ *      batchWindow: seconds the list of tests in an archive is shared between checks.
+ *          Defaults to 60. 0 looks up the tests of each check separately.
+ *      warning: the warning threshold. Optional.
+ *      critical: the critical threshold
+ * Throughput goes to warning or critical when it is below the threshold, loss and
+ * latency when they are above it. The same statistics as the Nagios checks are returned.
+ * Checks against the same archive find their tests in one shared query for all tests
+ * of the metric, see {@link ArchiveQueryBatcher}, rather than one query per row and column.
+ */
+public class EsmondCheck implements Check {
+    private Logger log = Logger.getLogger(EsmondCheck.class);
+    private Logger netlogger = Logger.getLogger("netlogger");
+
+    final static public String PARAM_METRIC = "metric";
+    final static public String PARAM_MAURL = "maUrl";
+    final static public String PARAM_GRAPH_URL = "graphUrl";
+    final static public String PARAM_SOURCE = "source";
+    final static public String PARAM_DESTINATION = "destination";
+    final static public String PARAM_TIME_RANGE = "timeRange";
+    final static public String PARAM_WARNING = "warning";
+    final static public String PARAM_CRITICAL = "critical";
+    final static public String PARAM_BATCH_WINDOW = "batchWindow";
+    final static public String METRIC_THROUGHPUT = "throughput";
+    final static public String METRIC_LOSS = "loss";
+    final static public String METRIC_LATENCY = "latency";
+
+    final static private String PROP_DEFAULT = "default";
+    final static private int DEFAULT_TIME_RANGE = 3600;
+    final static private int DEFAULT_BATCH_WINDOW = 60;
+    final static private int MAX_CONNECTIONS = 500;
+    final static private int MAX_CONNECTIONS_PER_ARCHIVE = 20;
+
+    //shared by every check so connections to an archive are reused
+    static private CloseableHttpClient httpClient;
+    //aborts requests still running when their check's timeout is reached
+    static private ScheduledExecutorService abortTimer;
+    static{
+        abortTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EsmondCheckAbortTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(MAX_CONNECTIONS);
+        connManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ARCHIVE);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connManager)
+                .useSystemProperties()
+                .build();
+    }
+
+    public CheckResult check(String gridName, String rowName, String colName,
+            Map params, TemplateVariableMap rowVars, TemplateVariableMap colVars, int timeout) {
+        //get parameters
+        String metric = (params.containsKey(PARAM_METRIC) && params.get(PARAM_METRIC) != null ?
+                params.get(PARAM_METRIC) + "" : null);
+        String eventType = null;
+        if(METRIC_THROUGHPUT.equals(metric)){
+            eventType = "throughput";
+        }else if(METRIC_LOSS.equals(metric)){
+            eventType = "packet-loss-rate";
+        }else if(METRIC_LATENCY.equals(metric)){
+            eventType = "histogram-owdelay";
+        }else{
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    PARAM_METRIC + " must be one of " + METRIC_THROUGHPUT + ", " + METRIC_LOSS +
+                    " or " + METRIC_LATENCY + ". Please check config file", null);
+        }
+        if(!params.containsKey(PARAM_CRITICAL) || params.get(PARAM_CRITICAL) == null){
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    PARAM_CRITICAL + " not defined. Please check config file", null);
+        }
+        if(!params.containsKey(PARAM_MAURL) || params.get(PARAM_MAURL) == null){
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    PARAM_MAURL + " not defined. Please check config file", null);
+        }
+        Double warning = null;
+        double critical;
+        int timeRange = DEFAULT_TIME_RANGE;
+        int batchWindow = DEFAULT_BATCH_WINDOW;
+        try{
+            critical = Double.parseDouble(params.get(PARAM_CRITICAL) + "");
+            if(params.containsKey(PARAM_WARNING) && params.get(PARAM_WARNING) != null){
+                warning = Double.parseDouble(params.get(PARAM_WARNING) + "");
+            }
+            if(params.containsKey(PARAM_TIME_RANGE) && params.get(PARAM_TIME_RANGE) != null){
+                timeRange = Integer.parseInt(params.get(PARAM_TIME_RANGE) + "");
+            }
+            if(params.containsKey(PARAM_BATCH_WINDOW) && params.get(PARAM_BATCH_WINDOW) != null){
+                batchWindow = Integer.parseInt(params.get(PARAM_BATCH_WINDOW) + "");
+            }
+        }catch(NumberFormatException e){
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    "Invalid number in check parameters: " + e.getMessage(), null);
+        }
+
+        //fill-in templates
+        TemplateVariableMap vars = new TemplateVariableMap();
+        vars.put("%row", rowName);
+        vars.put("%col", colName);
+        String maUrl = NagiosCheck.parseStringorMap(params, PARAM_MAURL, rowName, colName, PROP_DEFAULT);
+        if(maUrl == null){
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                     "Default MA URL not defined. Please check config file", null);
+        }
+        maUrl = CommandTemplate.compile(maUrl).render(vars, rowVars, colVars, true);
+        vars.put("%maUrl", maUrl);
+        String source = this.renderParam(params, PARAM_SOURCE, "%row", vars, rowVars, colVars);
+        String destination = this.renderParam(params, PARAM_DESTINATION, "%col", vars, rowVars, colVars);
+        HashMap<String, String> stats = new HashMap<String, String>();
+        stats.put("maUrl", maUrl);
+        if(params.containsKey(PARAM_GRAPH_URL) && params.get(PARAM_GRAPH_URL) != null){
+            String graphUrl = NagiosCheck.parseStringorMap(params, PARAM_GRAPH_URL, rowName, colName, PROP_DEFAULT);
+            if(graphUrl != null){
+                stats.put("graphUrl", CommandTemplate.compile(graphUrl).render(vars, rowVars, colVars, true));
+            }
+        }
+
+        //query the archive
+        NetLogger netLog = NetLogger.getTlogger();
+        HashMap<String, String> netLogParams = new HashMap<String, String>();
+        netLogParams.put("eventType", eventType);
+        //every request made by the check shares one deadline
+        final long deadline = System.currentTimeMillis() + timeout * 1000L;
+        List<Double> values = new ArrayList<Double>();
+        try{
+            netlogger.debug(netLog.start("maddash.EsmondCheck.query", null, maUrl, netLogParams));
+            URI archiveUri = new URI(maUrl);
+            String queryPrefix = maUrl + (maUrl.contains("?") ? "&" : "?");
+            String eventQuery = "event-type=" + eventType + "&time-range=" + timeRange;
+            List<JsonValue> metadataList = null;
+            if(batchWindow > 0){
+                final String bulkUrl = queryPrefix + eventQuery;
+                JsonValue bulkList = ArchiveQueryBatcher.get(bulkUrl, batchWindow, this.remaining(deadline), new Callable<JsonValue>(){
+                    public JsonValue call() throws Exception {
+                        return EsmondCheck.this.getJson(bulkUrl, deadline);
+                    }
+                });
+                metadataList = this.filterMetadata(bulkList, source, destination);
+                netLogParams.put("batched", (metadataList != null) + "");
+            }
+            if(metadataList == null){
+                //not batching or the archive names the endpoints differently, so let it match them
+                JsonValue pairList = this.getJson(queryPrefix + "source=" + URLEncoder.encode(source, "UTF-8") +
+                        "&destination=" + URLEncoder.encode(destination, "UTF-8") + "&" + eventQuery, deadline);
+                metadataList = (pairList instanceof JsonArray ? (JsonArray) pairList : new ArrayList<JsonValue>());
+            }
+            for(JsonValue metadata : metadataList){
+                String baseUri = this.findBaseUri(metadata, eventType);
+                if(baseUri == null){
+                    continue;
+                }
+                String dataUrl = archiveUri.resolve(baseUri).toString() + "?time-range=" + timeRange;
+                JsonValue data = this.getJson(dataUrl, deadline);
+                if(data instanceof JsonArray){
+                    this.addValues((JsonArray) data, metric, values);
+                }
+            }
+            netLogParams.put("count", values.size() + "");
+            netlogger.debug(netLog.end("maddash.EsmondCheck.query", null, maUrl, netLogParams));
+        }catch(TimeoutException e){
+            netlogger.debug(netLog.error("maddash.EsmondCheck.query", "timeout", maUrl, netLogParams));
+            log.error("Timed out querying measurement archive " + maUrl);
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    "Measurement archive did not respond within " + timeout + " seconds", stats);
+        }catch(Exception e){
+            netlogger.debug(netLog.error("maddash.EsmondCheck.query", e.getMessage(), maUrl, netLogParams));
+            log.error("Error querying measurement archive " + maUrl + ": " + e.getMessage());
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    "Unable to query measurement archive: " + e.getMessage(), stats);
+        }
+        if(values.isEmpty()){
+            return new CheckResult(CheckConstants.RESULT_UNKNOWN,
+                    "Unable to find any tests with data in the given time range", stats);
+        }
+
+        //calculate statistics
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0;
+        for(double value : values){
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        double average = sum / values.size();
+        double squareDiffs = 0;
+        for(double value : values){
+            squareDiffs += (value - average) * (value - average);
+        }
+        stats.put("Average", this.format(average));
+        stats.put("Min", this.format(min));
+        stats.put("Max", this.format(max));
+        stats.put("Standard_Deviation", this.format(Math.sqrt(squareDiffs / values.size())));
+        stats.put("Count", values.size() + "");
+
+        //compare against thresholds
+        boolean lowerIsWorse = METRIC_THROUGHPUT.equals(metric);
+        int resultCode = CheckConstants.RESULT_SUCCESS;
+        if(lowerIsWorse ? average < critical : average > critical){
+            resultCode = CheckConstants.RESULT_CRITICAL;
+        }else if(warning != null && (lowerIsWorse ? average < warning : average > warning)){
+            resultCode = CheckConstants.RESULT_WARN;
+        }
+        String units = (METRIC_THROUGHPUT.equals(metric) ? "Gbps" : (METRIC_LOSS.equals(metric) ? "%" : "ms"));
+        String message = "Average " + metric + " is " + this.format(average) + units;
+
+        return new CheckResult(resultCode, message, stats);
+    }
+
+    private String renderParam(Map params, String name, String defaultTemplate, TemplateVariableMap vars,
+            TemplateVariableMap rowVars, TemplateVariableMap colVars){
+        String template = defaultTemplate;
+        if(params.containsKey(name) && params.get(name) != null){
+            template = params.get(name) + "";
+        }
+        return CommandTemplate.compile(template).render(vars, rowVars, colVars, true);
+    }
+
+    /*
+     * Returns the milliseconds left before the deadline
+     */
+    private long remaining(long deadline) throws TimeoutException{
+        long remaining = deadline - System.currentTimeMillis();
+        if(remaining <= 0){
+            throw new TimeoutException();
+        }
+        return remaining;
+    }
+
+    /*
+     * Gets JSON from the archive. Timeouts only limit each connect and read, so
+     * the request is also aborted if it is still running at the deadline.
+     */
+    private JsonValue getJson(String url, long deadline) throws Exception{
+        log.debug("Querying " + url);
+        int remaining = (int) Math.min(this.remaining(deadline), Integer.MAX_VALUE);
+        final HttpGet get = new HttpGet(url);
+        get.setConfig(RequestConfig.custom()
+                .setConnectTimeout(remaining)
+                .setConnectionRequestTimeout(remaining)
+                .setSocketTimeout(remaining)
+                .build());
+        get.setHeader("Accept", "application/json");
+        ScheduledFuture<?> abort = abortTimer.schedule(new Runnable(){
+            public void run() {
+                get.abort();
+            }
+        }, remaining, TimeUnit.MILLISECONDS);
+        CloseableHttpResponse response = null;
+        try{
+            response = httpClient.execute(get);
+            HttpEntity entity = response.getEntity();
+            if(response.getStatusLine().getStatusCode()/100 != 2){
+                EntityUtils.consume(entity);
+                throw new RuntimeException("Archive returned status " + response.getStatusLine().getStatusCode());
+            }
+            JsonReader reader = Json.createReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+            JsonValue json = reader.read();
+            reader.close();
+            EntityUtils.consume(entity);
+            return json;
+        }catch(Exception e){
+            //reads fail once the request is aborted at the deadline
+            if(get.isAborted() || System.currentTimeMillis() >= deadline){
+                throw new TimeoutException();
+            }
+            throw e;
+        }finally{
+            abort.cancel(false);
+            if(response != null){
+                response.close();
+            }
+        }
+    }
+
+    /*
+     * Picks the tests between the source and destination out of the list of every test
+     * in the archive. The archive stores addresses and the names the tests were
+     * configured with, so if either endpoint matches neither of those for any test
+     * we return null and the archive is asked to resolve them instead.
+     */
+    private List<JsonValue> filterMetadata(JsonValue bulkList, String source, String destination){
+        if(!(bulkList instanceof JsonArray)){
+            return null;
+        }
+        boolean sourceKnown = false;
+        boolean destinationKnown = false;
+        List<JsonValue> matches = new ArrayList<JsonValue>();
+        for(JsonValue metadata : (JsonArray) bulkList){
+            if(!(metadata instanceof JsonObject)){
+                continue;
+            }
+            JsonObject metadataObj = (JsonObject) metadata;
+            boolean sourceMatch = source.equals(metadataObj.getString("source", null)) ||
+                    source.equals(metadataObj.getString("input-source", null));
+            boolean destinationMatch = destination.equals(metadataObj.getString("destination", null)) ||
+                    destination.equals(metadataObj.getString("input-destination", null));
+            sourceKnown = sourceKnown || sourceMatch;
+            destinationKnown = destinationKnown || destinationMatch;
+            if(sourceMatch && destinationMatch){
+                matches.add(metadata);
+            }
+        }
+        if(!sourceKnown || !destinationKnown){
+            return null;
+        }
+        return matches;
+    }
+
+    private String findBaseUri(JsonValue metadata, String eventType){
+        if(!(metadata instanceof JsonObject) ||
+                !(((JsonObject) metadata).get("event-types") instanceof JsonArray)){
+            return null;
+        }
+        for(JsonValue eventTypeObj : ((JsonObject) metadata).getJsonArray("event-types")){
+            if(eventTypeObj instanceof JsonObject &&
+                    eventType.equals(((JsonObject) eventTypeObj).getString("event-type", null))){
+                return ((JsonObject) eventTypeObj).getString("base-uri", null);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Converts each data point to the units thresholds are given in. Throughput is
+     * reported in bps, loss as a fraction and latency as a histogram of ms values.
+     */
+    private void addValues(JsonArray data, String metric, List<Double> values){
+        for(JsonValue point : data){
+            if(!(point instanceof JsonObject)){
+                continue;
+            }
+            JsonValue val = ((JsonObject) point).get("val");
+            if(METRIC_LATENCY.equals(metric) && val instanceof JsonObject){
+                double weightedSum = 0;
+                long count = 0;
+                for(Map.Entry<String, JsonValue> bucket : ((JsonObject) val).entrySet()){
+                    if(!(bucket.getValue() instanceof JsonNumber)){
+                        continue;
+                    }
+                    try{
+                        long bucketCount = ((JsonNumber) bucket.getValue()).longValue();
+                        weightedSum += Double.parseDouble(bucket.getKey()) * bucketCount;
+                        count += bucketCount;
+                    }catch(NumberFormatException e){}
+                }
+                if(count > 0){
+                    values.add(weightedSum / count);
+                }
+            }else if(val instanceof JsonNumber){
+                double value = ((JsonNumber) val).doubleValue();
+                if(METRIC_THROUGHPUT.equals(metric)){
+                    values.add(value / 1000000000.0);
+                }else if(METRIC_LOSS.equals(metric)){
+                    values.add(value * 100.0);
+                }
+            }
+        }
+    }
+
+    private String format(double value){
+        //returnParams are parsed back as numbers so never use a decimal comma
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import net.es.maddash.NetLogger;
 
@@ -30,21 +31,14 @@ public class NagiosCheck implements Check{
             return new CheckResult(CheckConstants.RESULT_UNKNOWN, 
                     "Command not defined. Please check config file", null);
         }
-        String command = this.parseStringorMap(params, PARAM_COMMAND, rowName, colName, PROP_DEFAULT);
+        String command = parseStringorMap(params, PARAM_COMMAND, rowName, colName, PROP_DEFAULT);
         //if still not set then throw error
         if(command == null){
             return new CheckResult(CheckConstants.RESULT_UNKNOWN,
                     "Default command not defined. Please check config file", null);
         }
         
-        for(String rowVar : rowVars.keySet()){
-        	command = command.replaceAll("%row." + rowVar, rowVars.get(rowVar));
-        }
-        command = command.replaceAll("%row", rowName);
-        for(String colVar : colVars.keySet()){
-        	command = command.replaceAll("%col." + colVar, rowVars.get(colVar));
-        }
-        command = command.replaceAll("%col", colName);
+        command = CommandTemplate.compile(command).renderCached(rowName, colName, rowVars, colVars);
         
         NetLogger netLog = NetLogger.getTlogger();
         CheckResult result = null;
@@ -54,10 +48,7 @@ public class NagiosCheck implements Check{
             netlogger.debug(netLog.start("maddash.NagiosCheck.runCommand"));
             log.debug("Executing command " + command);
             process = runtime.exec(command);
-            WatchDog watchdog = new WatchDog(process);
-            watchdog.start();
-            watchdog.join(timeout*1000);
-            if(watchdog.exit == null){
+            if(!process.waitFor(timeout, TimeUnit.SECONDS)){
                 result = new CheckResult(CheckConstants.RESULT_UNKNOWN, 
                         "Command timed-out after " + timeout + " seconds",
                         null);
@@ -92,7 +83,7 @@ public class NagiosCheck implements Check{
         return result;
     }
 
-    protected String parseStringorMap(Map map, String propName, String rowName, String colName, String defaultPropName){
+    static protected String parseStringorMap(Map map, String propName, String rowName, String colName, String defaultPropName){
         String val = null;
         //try to get as string for backward compatibility
         try{
@@ -101,13 +92,13 @@ public class NagiosCheck implements Check{
         //try to get as map
         if(val == null){
             Map m = (Map)map.get(propName);
-            val= this.parseRowColMapProp(m, rowName, colName, defaultPropName);
+            val= parseRowColMapProp(m, rowName, colName, defaultPropName);
         }
 
         return val;
     }
 
-    protected String parseRowColMapProp(Map map, String rowName, String colName, String defaultPropName){
+    static protected String parseRowColMapProp(Map map, String rowName, String colName, String defaultPropName){
         String val = null;
         if(map.containsKey(rowName) && map.get(rowName) != null){
             Map<String,String> rowMap = (Map<String,String>) map.get(rowName);
@@ -159,21 +150,4 @@ public class NagiosCheck implements Check{
         return params;
     }
 
-    private class WatchDog extends Thread{
-        private Process process;
-        private Integer exit = null;
-        
-        public WatchDog(Process process){
-            this.process = process;
-        }
-        
-        public void run(){
-            try {
-                this.exit = this.process.waitFor();
-            } catch (InterruptedException e) {
-                return;
-            }
-        }
-    }
-
 }
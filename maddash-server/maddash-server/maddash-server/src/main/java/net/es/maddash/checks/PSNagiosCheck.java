@@ -72,7 +72,7 @@ public class PSNagiosCheck extends NagiosCheck implements Check {
                     PARAM_MAURL + " not defined. Please check config file", null);
         }
         Map maUrlMap = (Map)params.get(PARAM_MAURL);
-        String maUrl = this.parseStringorMap(params, PARAM_MAURL, rowName, colName, PROP_DEFAULT);
+        String maUrl = parseStringorMap(params, PARAM_MAURL, rowName, colName, PROP_DEFAULT);
         //if still not set then throw error
         if(maUrl == null){
             return new CheckResult(CheckConstants.RESULT_UNKNOWN, 
@@ -82,7 +82,7 @@ public class PSNagiosCheck extends NagiosCheck implements Check {
         vars.put("%maUrl", maUrl);
         
         //get reverse MA URL
-        String maUrlReverse = this.parseStringorMap(params, PARAM_MAURL, colName, rowName, PROP_DEFAULT);
+        String maUrlReverse = parseStringorMap(params, PARAM_MAURL, colName, rowName, PROP_DEFAULT);
         //if still not set then use maURL
         if(maUrlReverse == null){
             maUrlReverse = maUrl;
@@ -108,7 +108,7 @@ public class PSNagiosCheck extends NagiosCheck implements Check {
             return new CheckResult(CheckConstants.RESULT_UNKNOWN, 
                     PARAM_GRAPH_URL + " not defined. Please check config file", null);
         }
-        String graphUrl = this.parseStringorMap(params, PARAM_GRAPH_URL, rowName, colName, PROP_DEFAULT);
+        String graphUrl = parseStringorMap(params, PARAM_GRAPH_URL, rowName, colName, PROP_DEFAULT);
         //if still not set then throw error
         if(graphUrl == null){
             return new CheckResult(CheckConstants.RESULT_UNKNOWN, 
@@ -120,7 +120,7 @@ public class PSNagiosCheck extends NagiosCheck implements Check {
             return new CheckResult(CheckConstants.RESULT_UNKNOWN, 
                     "Command not defined. Please check config file", null);
         }
-        String command = this.parseStringorMap(params, PARAM_COMMAND, rowName, colName, PROP_DEFAULT);
+        String command = parseStringorMap(params, PARAM_COMMAND, rowName, colName, PROP_DEFAULT);
         //if still not set then throw error
         if(command == null){
             return new CheckResult(CheckConstants.RESULT_UNKNOWN,
@@ -182,17 +182,6 @@ public class PSNagiosCheck extends NagiosCheck implements Check {
     }
 
     private String replaceVars(String param, TemplateVariableMap vars, TemplateVariableMap rowVars, TemplateVariableMap colVars) {
-        for(String rowVar : rowVars.keySet()){
-            param = param.replaceAll("%row\\." + rowVar, rowVars.get(rowVar));
-        }
-        param = param.replaceAll("%row\\.\\w+", ""); //clear out leftovers
-        for(String colVar : colVars.keySet()){
-            param = param.replaceAll("%col\\." + colVar, colVars.get(colVar));
-        }
-        param = param.replaceAll("%col\\.\\w+", ""); //clear out leftovers
-        for(String var : vars.keySet()){
-            param = param.replaceAll(var, vars.get(var));
-        }
-        return param;
+        return CommandTemplate.compile(param).render(vars, rowVars, colVars, true);
     }
 }
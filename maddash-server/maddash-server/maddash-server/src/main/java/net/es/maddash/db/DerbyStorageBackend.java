@@ -0,0 +1,71 @@
+package net.es.maddash.db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import net.es.maddash.MaDDashConnectionCustomizer;
+
+/**
+ * Stores data in an embedded Derby database kept in a local directory. This is
+ * the default backend.
+ */
+public class DerbyStorageBackend implements StorageBackend {
+    private String directory;
+
+    final static public String PROP_DIRECTORY = "directory";
+    final static public String DEFAULT_DIRECTORY = "data/dashboard.db";
+    final static private String JDBC_URL = "jdbc:derby:maddash;create=true";
+    final static private String JDBC_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    public void init(Map config) {
+        this.directory = DEFAULT_DIRECTORY;
+        if(config.containsKey(PROP_DIRECTORY) && config.get(PROP_DIRECTORY) != null){
+            this.directory = (String) config.get(PROP_DIRECTORY);
+        }
+        System.setProperty("derby.system.home", this.directory);
+    }
+
+    public String getDriverClass() {
+        return JDBC_DRIVER;
+    }
+
+    public String getJdbcUrl() {
+        return JDBC_URL;
+    }
+
+    public String getUser() {
+        return null;
+    }
+
+    public String getPassword() {
+        return null;
+    }
+
+    public String getConnectionCustomizerClassName() {
+        return MaDDashConnectionCustomizer.class.getName();
+    }
+
+    public String getClobType() {
+        return "CLOB";
+    }
+
+    public String toMetadataName(String name) {
+        return name.toUpperCase();
+    }
+
+    public boolean isAlreadyExists(SQLException e) {
+        return "X0Y32".equals(e.getSQLState());
+    }
+
+    public boolean isDoesNotExist(SQLException e) {
+        //42X65 is a missing index and 42Y55 a missing table
+        return "42X65".equals(e.getSQLState()) || "42Y55".equals(e.getSQLState());
+    }
+
+    /**
+     * @return the directory where the database files are stored
+     */
+    public String getDirectory() {
+        return this.directory;
+    }
+}
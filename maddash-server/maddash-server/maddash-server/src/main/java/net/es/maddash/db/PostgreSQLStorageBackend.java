@@ -0,0 +1,75 @@
+package net.es.maddash.db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Stores data in a PostgreSQL server. Allows larger meshes than the embedded
+ * database since data is kept by a separate server process. The database must
+ * already exist but tables are created automatically. Requires PostgreSQL 10 or
+ * later since tables use GENERATED ALWAYS AS IDENTITY columns.
+ */
+public class PostgreSQLStorageBackend implements StorageBackend {
+    private String url;
+    private String user;
+    private String password;
+
+    final static public String PROP_URL = "url";
+    final static public String PROP_USER = "user";
+    final static public String PROP_PASSWORD = "password";
+    final static private String JDBC_DRIVER = "org.postgresql.Driver";
+    final static private String SQLSTATE_DUPLICATE_TABLE = "42P07";
+    final static private String SQLSTATE_UNDEFINED_OBJECT = "42704";
+    final static private String SQLSTATE_UNDEFINED_TABLE = "42P01";
+
+    public void init(Map config) {
+        if(!config.containsKey(PROP_URL) || config.get(PROP_URL) == null){
+            throw new RuntimeException("Database property '" + PROP_URL + "' is required for PostgreSQL");
+        }
+        this.url = (String) config.get(PROP_URL);
+        if(config.containsKey(PROP_USER) && config.get(PROP_USER) != null){
+            this.user = (String) config.get(PROP_USER);
+        }
+        if(config.containsKey(PROP_PASSWORD) && config.get(PROP_PASSWORD) != null){
+            this.password = config.get(PROP_PASSWORD) + "";
+        }
+    }
+
+    public String getDriverClass() {
+        return JDBC_DRIVER;
+    }
+
+    public String getJdbcUrl() {
+        return this.url;
+    }
+
+    public String getUser() {
+        return this.user;
+    }
+
+    public String getPassword() {
+        return this.password;
+    }
+
+    public String getConnectionCustomizerClassName() {
+        //readers don't block writers so default isolation level is fine
+        return null;
+    }
+
+    public String getClobType() {
+        return "TEXT";
+    }
+
+    public String toMetadataName(String name) {
+        return name.toLowerCase();
+    }
+
+    public boolean isAlreadyExists(SQLException e) {
+        return SQLSTATE_DUPLICATE_TABLE.equals(e.getSQLState());
+    }
+
+    public boolean isDoesNotExist(SQLException e) {
+        return SQLSTATE_UNDEFINED_OBJECT.equals(e.getSQLState()) || 
+                SQLSTATE_UNDEFINED_TABLE.equals(e.getSQLState());
+    }
+}
@@ -0,0 +1,243 @@
+package net.es.maddash.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps check results in one table per day (UTC) so old results can be removed by
+ * dropping whole tables instead of deleting rows. Tables are named results_YYYYMMDD
+ * and are created the first time a result for that day is written. Results written
+ * by older versions to the single results table are read as the oldest bucket
+ * until they expire.
+ */
+public class ResultsStore {
+    Logger log = Logger.getLogger(ResultsStore.class);
+    private StorageBackend backend;
+    //newest first
+    private NavigableSet<String> buckets;
+    private boolean hasLegacyTable;
+    //bucket|checkIdList -> row count for buckets no longer written to
+    private ConcurrentHashMap<String, Integer> countCache;
+
+    final static public String LEGACY_TABLE = "results";
+    final static private String BUCKET_PREFIX = "results_";
+    final static private String BUCKET_DATE_FORMAT = "yyyyMMdd";
+    final static private long SECONDS_PER_DAY = 86400;
+
+    /**
+     * Creates a store and finds the buckets that already exist
+     *
+     * @param backend the database the results are stored in
+     * @param conn a connection to the database
+     * @throws SQLException
+     */
+    public ResultsStore(StorageBackend backend, Connection conn) throws SQLException{
+        this.backend = backend;
+        this.buckets = new ConcurrentSkipListSet<String>(Collections.reverseOrder());
+        this.hasLegacyTable = false;
+        this.countCache = new ConcurrentHashMap<String, Integer>();
+        DatabaseMetaData dbMetadata = conn.getMetaData();
+        //only look in the schema our unqualified table names resolve to
+        ResultSet tables = dbMetadata.getTables(null, conn.getSchema(), null, new String[]{"TABLE"});
+        while(tables.next()){
+            String tableName = tables.getString("TABLE_NAME").toLowerCase();
+            if(LEGACY_TABLE.equals(tableName)){
+                this.hasLegacyTable = true;
+            }else if(tableName.startsWith(BUCKET_PREFIX) &&
+                    tableName.length() == BUCKET_PREFIX.length() + BUCKET_DATE_FORMAT.length()){
+                this.buckets.add(tableName);
+            }
+        }
+        tables.close();
+        log.debug("Found " + this.buckets.size() + " result buckets");
+    }
+
+    /**
+     * Returns the name of the table results from the given time are stored in,
+     * creating it if it does not exist.
+     *
+     * @param time the time of the result in seconds
+     * @param conn a connection to the database
+     * @return the name of the table
+     * @throws SQLException
+     */
+    public String getBucket(long time, Connection conn) throws SQLException{
+        String bucket = this.bucketName(time);
+        if(!this.buckets.contains(bucket)){
+            this.createBucket(bucket, conn);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the tables that may hold results from the given time onward.
+     *
+     * @param since the earliest time in seconds of interest or 0 for all
+     * @return the table names, newest first
+     */
+    public List<String> listBuckets(long since){
+        return this.listBuckets(since, 0);
+    }
+
+    /**
+     * Returns the tables that may hold results within the given time range.
+     *
+     * @param start the earliest time in seconds of interest or 0 for all
+     * @param end the time in seconds after the last time of interest or 0 for no limit
+     * @return the table names, newest first
+     */
+    public List<String> listBuckets(long start, long end){
+        List<String> tables = new ArrayList<String>();
+        String oldest = (start > 0 ? this.bucketName(start) : null);
+        String newest = (end > 0 ? this.bucketName(end - 1) : null);
+        for(String bucket : this.buckets){
+            if(newest != null && bucket.compareTo(newest) > 0){
+                continue;
+            }
+            if(oldest != null && bucket.compareTo(oldest) < 0){
+                break;
+            }
+            tables.add(bucket);
+        }
+        if(this.hasLegacyTable){
+            tables.add(LEGACY_TABLE);
+        }
+        return tables;
+    }
+
+    /**
+     * Drops every table where all results are older than the given time
+     *
+     * @param oldestAllowedTime the time in seconds before which results may be removed
+     * @param conn a connection to the database
+     * @return the number of tables dropped
+     * @throws SQLException
+     */
+    public int dropBefore(long oldestAllowedTime, Connection conn) throws SQLException{
+        int dropped = 0;
+        //a bucket only ends before the cutoff if it started a day before the cutoff's bucket
+        String oldestKept = this.bucketName(oldestAllowedTime);
+        for(String bucket : new ArrayList<String>(this.buckets)){
+            if(bucket.compareTo(oldestKept) >= 0){
+                continue;
+            }
+            this.dropTable(bucket, conn);
+            this.buckets.remove(bucket);
+            dropped++;
+        }
+
+        if(this.hasLegacyTable){
+            ResultSet newest = conn.prepareStatement("SELECT MAX(checkTime) FROM " + LEGACY_TABLE).executeQuery();
+            if(newest.next() && newest.getLong(1) < oldestAllowedTime){
+                this.dropTable(LEGACY_TABLE, conn);
+                this.hasLegacyTable = false;
+                dropped++;
+            }
+            newest.close();
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Counts the results for the given checks in a table. Counts of buckets older 
+     * than yesterday are cached since those tables are no longer written to and are 
+     * dropped whole when they expire. The single results table of older versions is 
+     * always counted since expired rows are deleted from it as it ages.
+     *
+     * @param bucket the name of the table
+     * @param checkIdList a comma separated list of check ids
+     * @param conn a connection to the database
+     * @return the number of results
+     * @throws SQLException
+     */
+    public int countResults(String bucket, String checkIdList, Connection conn) throws SQLException{
+        long now = System.currentTimeMillis()/1000;
+        boolean cacheable = (!LEGACY_TABLE.equals(bucket) && 
+                bucket.compareTo(this.bucketName(now - SECONDS_PER_DAY)) < 0);
+        String cacheKey = bucket + "|" + checkIdList;
+        if(cacheable && this.countCache.containsKey(cacheKey)){
+            return this.countCache.get(cacheKey);
+        }
+
+        int count = 0;
+        PreparedStatement countStmt = conn.prepareStatement("SELECT COUNT(*) FROM " + 
+                bucket + " WHERE checkId IN (" + checkIdList + ")");
+        ResultSet countResult = countStmt.executeQuery();
+        if(countResult.next()){
+            count = countResult.getInt(1);
+        }
+        countStmt.close();
+        if(cacheable){
+            this.countCache.put(cacheKey, count);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if results written by older versions to the single results table remain
+     */
+    public boolean hasLegacyTable(){
+        return this.hasLegacyTable;
+    }
+
+    synchronized private void createBucket(String bucket, Connection conn) throws SQLException{
+        if(this.buckets.contains(bucket)){
+            return;
+        }
+        this.execCreate("CREATE TABLE " + bucket + " (id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY, " +
+                "checkId INTEGER NOT NULL, checkTime BIGINT NOT NULL, returnCode " +
+                "INTEGER NOT NULL, returnMessage VARCHAR(2000) NOT NULL, returnParams VARCHAR(32672), " +
+                "resultCount INTEGER NOT NULL, checkStatus INTEGER NOT NULL)", conn);
+        this.execCreate("CREATE INDEX " + bucket + "CheckId ON " + bucket + "(checkId, checkTime DESC, id DESC)", conn);
+        this.execCreate("CREATE INDEX " + bucket + "CheckTime ON " + bucket + "(checkTime)", conn);
+        this.buckets.add(bucket);
+        log.info("Created result bucket " + bucket);
+    }
+
+    private void dropTable(String table, Connection conn) throws SQLException{
+        try{
+            conn.prepareStatement("DROP TABLE " + table).execute();
+            log.info("Dropped result bucket " + table);
+            for(String cacheKey : this.countCache.keySet()){
+                if(cacheKey.startsWith(table + "|")){
+                    this.countCache.remove(cacheKey);
+                }
+            }
+        }catch(SQLException e){
+            if(!this.backend.isDoesNotExist(e)){
+                throw e;
+            }
+        }
+    }
+
+    private void execCreate(String sql, Connection conn) throws SQLException{
+        try{
+            conn.prepareStatement(sql).execute();
+        }catch(SQLException e){
+            if(!this.backend.isAlreadyExists(e)){
+                throw e;
+            }
+        }
+    }
+
+    private String bucketName(long time){
+        SimpleDateFormat format = new SimpleDateFormat(BUCKET_DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return BUCKET_PREFIX + format.format(new Date((time - time % SECONDS_PER_DAY) * 1000));
+    }
+}
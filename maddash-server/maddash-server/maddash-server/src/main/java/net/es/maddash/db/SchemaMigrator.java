@@ -0,0 +1,181 @@
+package net.es.maddash.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.es.maddash.NetLogger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Brings the database schema up to date. Each migration has a version number and
+ * the highest version applied is recorded in the schema_version table, so on
+ * startup only migrations newer than that are run. Statements are committed one
+ * at a time and objects that already exist are skipped, so a migration that was
+ * interrupted is safe to run again. Changes that need to inspect the database 
+ * first can be added as a {@link MigrationStep}.
+ */
+public class SchemaMigrator {
+    Logger log = Logger.getLogger(SchemaMigrator.class);
+    Logger netlogger = Logger.getLogger("netlogger");
+    private StorageBackend backend;
+    private TreeMap<Integer, Migration> migrations;
+
+    final static public String VERSION_TABLE = "schema_version";
+
+    /**
+     * Creates a migrator with no migrations
+     *
+     * @param backend the database being migrated
+     */
+    public SchemaMigrator(StorageBackend backend){
+        this.backend = backend;
+        this.migrations = new TreeMap<Integer, Migration>();
+    }
+
+    /**
+     * Adds a migration made of SQL statements
+     *
+     * @param version the version of the schema after this migration. Must be unique.
+     * @param description a short description of the change
+     * @param statements the SQL statements to run in order
+     */
+    public void addMigration(int version, String description, final String... statements){
+        this.addMigration(version, description, new MigrationStep(){
+            public void apply(Connection conn, SchemaMigrator migrator) throws SQLException {
+                for(String sql : statements){
+                    migrator.execStatement(sql, conn);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a migration that runs code
+     *
+     * @param version the version of the schema after this migration. Must be unique.
+     * @param description a short description of the change
+     * @param step the code that changes the schema
+     */
+    public void addMigration(int version, String description, MigrationStep step){
+        if(this.migrations.containsKey(version)){
+            throw new RuntimeException("Duplicate schema version " + version);
+        }
+        this.migrations.put(version, new Migration(description, step));
+    }
+
+    /**
+     * Returns the version of the schema in the database, creating the table that
+     * tracks it if needed.
+     *
+     * @param conn a connection to the database
+     * @return the highest version applied or 0 if none have been
+     * @throws SQLException
+     */
+    public int getVersion(Connection conn) throws SQLException{
+        this.execStatement("CREATE TABLE " + VERSION_TABLE + " (version INTEGER PRIMARY KEY, " +
+                "description VARCHAR(2000) NOT NULL, appliedTime BIGINT NOT NULL)", conn);
+        int version = 0;
+        PreparedStatement selStmt = conn.prepareStatement("SELECT MAX(version) FROM " + VERSION_TABLE);
+        ResultSet result = selStmt.executeQuery();
+        if(result.next()){
+            version = result.getInt(1);
+        }
+        selStmt.close();
+        return version;
+    }
+
+    /**
+     * Runs every migration newer than the version of the schema in the database
+     *
+     * @param conn a connection to the database
+     * @return the number of migrations run
+     * @throws SQLException
+     */
+    public int migrate(Connection conn) throws SQLException{
+        int currentVersion = this.getVersion(conn);
+        log.info("Database schema is at version " + currentVersion);
+        int applied = 0;
+        NetLogger netLog = NetLogger.getTlogger();
+        for(Map.Entry<Integer, Migration> migration : this.migrations.tailMap(currentVersion, false).entrySet()){
+            HashMap<String,String> netLogParams = new HashMap<String,String>();
+            netLogParams.put("version", migration.getKey() + "");
+            netLogParams.put("description", migration.getValue().description);
+            netlogger.info(netLog.start("maddash.SchemaMigrator.migrate", null, null, netLogParams));
+            try{
+                migration.getValue().step.apply(conn, this);
+            }catch(SQLException e){
+                netlogger.error(netLog.error("maddash.SchemaMigrator.migrate", e.getMessage(), null, netLogParams));
+                throw e;
+            }
+            PreparedStatement insertStmt = conn.prepareStatement("INSERT INTO " + VERSION_TABLE + " VALUES(?, ?, ?)");
+            insertStmt.setInt(1, migration.getKey());
+            insertStmt.setString(2, migration.getValue().description);
+            insertStmt.setLong(3, System.currentTimeMillis()/1000);
+            insertStmt.executeUpdate();
+            insertStmt.close();
+            netlogger.info(netLog.end("maddash.SchemaMigrator.migrate", null, null, netLogParams));
+            log.info("Migrated database schema to version " + migration.getKey() + ": " + migration.getValue().description);
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Runs a statement, ignoring errors caused by an object that already exists 
+     * or a dropped object that does not exist
+     *
+     * @param sql the statement to run
+     * @param conn a connection to the database
+     * @throws SQLException
+     */
+    public void execStatement(String sql, Connection conn) throws SQLException{
+        try{
+            conn.prepareStatement(sql).execute();
+        }catch(SQLException e){
+            if(this.backend.isAlreadyExists(e)){
+                log.debug("Skipping because it already exists: " + e.getMessage());
+            }else if(this.backend.isDoesNotExist(e)){
+                log.debug("Skipping because it does not exist: " + e.getMessage());
+            }else{
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the database being migrated
+     */
+    public StorageBackend getBackend(){
+        return this.backend;
+    }
+
+    /**
+     * A change to the schema made in code
+     */
+    public interface MigrationStep{
+        /**
+         * Applies the change. Must be safe to run again if it was interrupted.
+         *
+         * @param conn a connection to the database
+         * @param migrator the migrator running the step
+         * @throws SQLException
+         */
+        public void apply(Connection conn, SchemaMigrator migrator) throws SQLException;
+    }
+
+    private class Migration{
+        String description;
+        MigrationStep step;
+
+        Migration(String description, MigrationStep step){
+            this.description = description;
+            this.step = step;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.es.maddash.db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Describes a database MaDDash can store its data in. Hides the differences
+ * between databases in how to connect, the types used when creating tables and
+ * the errors returned when objects already exist or are missing. All other SQL
+ * used by MaDDash is standard and runs unchanged on every backend.
+ */
+public interface StorageBackend {
+
+    /**
+     * Configures the backend
+     *
+     * @param config the database section of the configuration file
+     */
+    public void init(Map config);
+
+    /**
+     * @return the class name of the JDBC driver
+     */
+    public String getDriverClass();
+
+    /**
+     * @return the JDBC URL used to connect to the database
+     */
+    public String getJdbcUrl();
+
+    /**
+     * @return the user to connect as or null if none is needed
+     */
+    public String getUser();
+
+    /**
+     * @return the password to connect with or null if none is needed
+     */
+    public String getPassword();
+
+    /**
+     * @return the name of a class that prepares new connections or null if none is needed
+     */
+    public String getConnectionCustomizerClassName();
+
+    /**
+     * @return the column type used to store large text values such as JSON parameters
+     */
+    public String getClobType();
+
+    /**
+     * Converts the name of a table or column to the case the database stores it
+     * in so it can be used to look up database metadata
+     *
+     * @param name the name of the table or column
+     * @return the name as stored by the database
+     */
+    public String toMetadataName(String name);
+
+    /**
+     * @param e the exception thrown by a CREATE statement
+     * @return true if the exception means the table or index already exists
+     */
+    public boolean isAlreadyExists(SQLException e);
+
+    /**
+     * @param e the exception thrown by a DROP statement
+     * @return true if the exception means the table or index does not exist
+     */
+    public boolean isDoesNotExist(SQLException e);
+}
@@ -0,0 +1,47 @@
+package net.es.maddash.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates the StorageBackend selected by the database section of the
+ * configuration file.
+ */
+public class StorageBackendFactory {
+    final static public String TYPE_DERBY = "derby";
+    final static public String TYPE_POSTGRESQL = "postgresql";
+    final static public String PROP_TYPE = "type";
+
+    /**
+     * Creates the backend described by the database section of the configuration
+     * file. A plain string is treated as the directory of a Derby database.
+     *
+     * @param dbConfig the database section of the configuration or null for defaults
+     * @return the initialized backend
+     */
+    static public StorageBackend create(Object dbConfig){
+        Map<Object,Object> config = new HashMap<Object,Object>();
+        if(dbConfig instanceof Map){
+            config.putAll((Map<?,?>) dbConfig);
+        }else if(dbConfig != null){
+            config.put(DerbyStorageBackend.PROP_DIRECTORY, dbConfig + "");
+        }
+
+        String type = TYPE_DERBY;
+        if(config.containsKey(PROP_TYPE) && config.get(PROP_TYPE) != null){
+            type = ((String) config.get(PROP_TYPE)).toLowerCase();
+        }
+
+        StorageBackend backend = null;
+        if(TYPE_DERBY.equals(type)){
+            backend = new DerbyStorageBackend();
+        }else if(TYPE_POSTGRESQL.equals(type)){
+            backend = new PostgreSQLStorageBackend();
+        }else{
+            throw new RuntimeException("Unable to create database of type " + type);
+        }
+
+        backend.init(config);
+        return backend;
+    }
+}
@@ -3,33 +3,39 @@ package net.es.maddash.jobs;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.lang.reflect.Method;
 import java.sql.SQLException;
-import java.util.Date;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import net.es.maddash.DimensionIndex;
 import net.es.maddash.MaDDashGlobals;
 import net.es.maddash.NetLogger;
 import net.es.maddash.checks.CheckConstants;
-import net.es.maddash.utils.DimensionUtil;
 
 import org.apache.log4j.Logger;
-import org.quartz.JobDataMap;
-import org.quartz.JobDetail;
-import org.quartz.SchedulerException;
-import org.quartz.SimpleTrigger;
-import org.quartz.Trigger;
-
-import static org.quartz.TriggerBuilder.*;
-import static org.quartz.JobBuilder.*;
 
 /**
- * Queries database for checks that need to be run. It will only pull a 
- * maximum number of rows as specified for the global jobBatchSize. This
- * prevents the queue from infinitely growing. It also limits how many 
- * jobs can be run every time this job runs. For example if jobBatchSize 
- * is 250 and this is run every minute, then the most jobs it will run is 
- * 250 per minute.If we did not have this limit you'd likely run into OutOfMemory
- * errors over time if you have lots of jobs to run that are not very quickly.
+ * Keeps every active check in an in-memory queue ordered by the time it next needs 
+ * to run and hands checks off to a pool of threads as they come due. The queue is 
+ * loaded from the database when this job starts and is updated as checks finish, 
+ * so the database is only read again if the schedule is changed by an admin. 
+ * At most jobBatchSize checks will be handed off and not yet finished at any one 
+ * time. This prevents the thread pool's queue from infinitely growing which 
+ * would likely lead to OutOfMemory errors over time if you have lots of jobs to 
+ * run that are not very quick. Checks of a type that has reached its concurrency 
+ * limit are kept aside until a check of that type finishes, so they never hold a 
+ * thread while they wait.
  * 
  * @author Andy Lake <andy@es.net>
  *
@@ -39,118 +45,381 @@ public class CheckSchedulerJob extends Thread{
     Logger netlogger = Logger.getLogger("netlogger");
     long DEFAULT_SLEEP_TIME = 20000;
     boolean running = true;
+    boolean reloadRequested = true;
+    HashMap<Integer, ScheduledCheck> checks = new HashMap<Integer, ScheduledCheck>();
+    PriorityQueue<ScheduledCheck> queue = new PriorityQueue<ScheduledCheck>();
+    int runningCount = 0;
+    ExecutorService checkExecutor;
+    HashMap<String, Semaphore> checkTypeSemaphores = new HashMap<String, Semaphore>();
+    HashMap<String, List<ScheduledCheck>> blockedChecks = new HashMap<String, List<ScheduledCheck>>();
+    
+    final static public String EXECUTION_MODE_THREADPOOL = "threadpool";
+    final static public String EXECUTION_MODE_VIRTUAL = "virtual";
 
-    public CheckSchedulerJob(String name){
+    /**
+     * Creates a new scheduler
+     * 
+     * @param name the name of the thread
+     * @param executionMode how checks are run. Either EXECUTION_MODE_THREADPOOL or EXECUTION_MODE_VIRTUAL.
+     * @param threadPoolSize the number of checks that can run in parallel in thread pool mode
+     * @param jobBatchSize the maximum number of checks handed off and not yet finished
+     * @param checkTypeLimits the maximum number of checks of a type that can run in parallel. May be null.
+     */
+    public CheckSchedulerJob(String name, String executionMode, int threadPoolSize, 
+            int jobBatchSize, Map<String,Integer> checkTypeLimits){
         super(name);
+        this.checkExecutor = this.createExecutor(executionMode, threadPoolSize, jobBatchSize);
+        if(checkTypeLimits != null){
+            for(String checkType : checkTypeLimits.keySet()){
+                this.checkTypeSemaphores.put(checkType, new Semaphore(checkTypeLimits.get(checkType), true));
+            }
+        }
+    }
+    
+    private ExecutorService createExecutor(String executionMode, int threadPoolSize, int jobBatchSize){
+        if(EXECUTION_MODE_VIRTUAL.equals(executionMode)){
+            /* Virtual threads only exist on Java 21 and later so look them up 
+             * at runtime. Each check gets its own virtual thread so a check 
+             * waiting on a process or the network doesn't hold a platform thread. */
+            try{
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                log.info("Running checks on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            }catch(Exception e){
+                log.warn("Virtual threads are not supported by this JVM so using thread pool instead: " + e);
+            }
+        }else if(!EXECUTION_MODE_THREADPOOL.equals(executionMode)){
+            throw new RuntimeException("Unrecognized check execution mode " + executionMode);
+        }
+        
+        //queue can't fill since we never hand off more than jobBatchSize checks
+        return new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 0L, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(Math.max(1, jobBatchSize)));
     }
 
-    public void disableRunning(){
+    synchronized public void disableRunning(){
         this.running = false;
+        this.notifyAll();
     }
 
     public void run(){
         this.running = true;
         while(this.running){
             try{
-                this.execute();
+                if(this.reloadRequested){
+                    this.loadChecks();
+                }
+                List<ScheduledCheck> dueChecks = this.waitForDueChecks();
+                if(!dueChecks.isEmpty()){
+                    this.execute(dueChecks);
+                }
             }catch(Exception e){
                 log.error("Error executing CheckSchedulerJob: " + e.getMessage());
-            }finally{
                 try {
+                    //don't spin if the database is unavailable
                     if(this.running) {
                         Thread.sleep(DEFAULT_SLEEP_TIME);
                     }
-                } catch (InterruptedException e) {
-                    log.error("Interrupt exception: " + e.getMessage());
+                } catch (InterruptedException e2) {
+                    log.error("Interrupt exception: " + e2.getMessage());
                 }
             }
         }
+        
+        //let running checks finish
+        this.checkExecutor.shutdown();
+        try {
+            while(!this.checkExecutor.awaitTermination(DEFAULT_SLEEP_TIME, TimeUnit.MILLISECONDS)){
+                log.debug("Waiting for running checks to finish");
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupt exception: " + e.getMessage());
+        }
         log.debug("CheckSchedulerJob stopped");
     }
     
-    synchronized public void execute() {
+    /**
+     * Requests that the queue be reloaded from the database. Should be called 
+     * any time the next check time of checks is changed outside this class.
+     */
+    synchronized public void reload(){
+        this.reloadRequested = true;
+        this.notifyAll();
+    }
+    
+    /**
+     * Called when a check finishes running but its result could not be stored. Puts the 
+     * check back in the queue to run at the given time.
+     * 
+     * @param checkId the id of the check that finished
+     * @param nextCheckTime the time in seconds when the check should next run
+     * @param statusMessage the status message of the check or null to keep the current one
+     */
+    synchronized public void checkFinished(int checkId, long nextCheckTime, String statusMessage){
+        ScheduledCheck check = this.checks.get(checkId);
+        if(check == null || !check.running){
+            return;
+        }
+        this.finish(check, nextCheckTime, statusMessage);
+    }
+    
+    /**
+     * Called when a check finishes running and its result has been stored. Records the 
+     * new state of the check and puts it back in the queue to run at the given time.
+     * 
+     * @param checkId the id of the check that finished
+     * @param nextCheckTime the time in seconds when the check should next run
+     * @param statusMessage the status message of the check
+     * @param checkStatus the status of the check
+     * @param prevResultCode the result code the check just returned
+     * @param resultCount the number of times in a row the result code was seen without changing the status
+     */
+    synchronized public void checkFinished(int checkId, long nextCheckTime, String statusMessage,
+            int checkStatus, int prevResultCode, int resultCount){
+        ScheduledCheck check = this.checks.get(checkId);
+        if(check == null || !check.running){
+            return;
+        }
+        check.checkStatus = checkStatus;
+        check.prevResultCode = prevResultCode;
+        check.resultCount = resultCount;
+        this.finish(check, nextCheckTime, statusMessage);
+    }
+    
+    private void finish(ScheduledCheck check, long nextCheckTime, String statusMessage){
+        check.running = false;
+        this.runningCount--;
+        check.nextCheckTime = nextCheckTime;
+        if(statusMessage != null){
+            check.statusMessage = statusMessage;
+        }
+        this.queue.add(check);
+        this.notifyAll();
+    }
+    
+    /**
+     * Called when a check has been deactivated. It will not be run again.
+     * 
+     * @param checkId the id of the check
+     */
+    synchronized public void checkDeactivated(int checkId){
+        ScheduledCheck check = this.checks.remove(checkId);
+        if(check == null){
+            return;
+        }
+        if(check.running){
+            this.runningCount--;
+        }else if(check.blocked){
+            this.blockedChecks.get(check.checkType).remove(check);
+        }else{
+            this.queue.remove(check);
+        }
+        this.notifyAll();
+    }
+    
+    /**
+     * Called when a check of a type with a concurrency limit stops running. Frees 
+     * its place so checks of the type waiting for one are put back in the queue.
+     * 
+     * @param checkType the type of the check that stopped
+     */
+    synchronized public void checkTypeFinished(String checkType){
+        Semaphore semaphore = this.checkTypeSemaphores.get(checkType);
+        if(semaphore == null){
+            return;
+        }
+        semaphore.release();
+        List<ScheduledCheck> blocked = this.blockedChecks.remove(checkType);
+        if(blocked != null){
+            for(ScheduledCheck check : blocked){
+                check.blocked = false;
+                this.queue.add(check);
+            }
+        }
+        this.notifyAll();
+    }
+    
+    /**
+     * Marks a check as being down for maintenance. Checks down for maintenance 
+     * are not run. If a check comes due during maintenance it is run as soon as 
+     * the maintenance ends.
+     * 
+     * @param checkId the id of the check
+     * @param maintenance true if the check is down for maintenance, false otherwise
+     */
+    synchronized public void setMaintenance(int checkId, boolean maintenance){
+        ScheduledCheck check = this.checks.get(checkId);
+        if(check == null){
+            return;
+        }
+        check.maintenance = maintenance;
+        if(!maintenance && check.held){
+            check.held = false;
+            this.queue.add(check);
+            this.notifyAll();
+        }
+    }
+    
+    /*
+     * Loads all active checks from the database. Checks that are currently 
+     * running are left alone since they'll be queued when they finish.
+     */
+    private void loadChecks() throws SQLException{
         NetLogger netLog = NetLogger.getTlogger();
-        netlogger.info(netLog.start("maddash.CheckSchedulerJob.execute"));
-        int schedJobCount = 0;
-        int totalJobCount = 0;
-        
-        //query database
+        netlogger.info(netLog.start("maddash.CheckSchedulerJob.loadChecks"));
         Connection conn = null;
         try{
-            /* garbage collect before hitting database. memory spikes occur 
-             * here as we pull in new check data so this maximizes memory 
-             * available prior to spike and should help prevent heap errors */
-            System.gc();
-            
             MaDDashGlobals globals = MaDDashGlobals.getInstance();
             conn = globals.getDataSource().getConnection();
-            long time = System.currentTimeMillis()/1000;
-            netlogger.debug(netLog.start("maddash.CheckSchedulerJob.execute.queryDb"));
             PreparedStatement selStmt = conn.prepareStatement("SELECT c.id, c.gridName, " +
-                "c.rowName, c.colName, t.checkType, t.checkParams, t.checkInterval, " +
-                "t.retryInterval, t.retryAttempts, t.timeout, c.statusMessage FROM checkTemplates AS t, " +
-                "checks AS c WHERE c.active = 1 AND t.id = c.checkTemplateId AND " +
-                "c.nextCheckTime <= ? AND c.checkStatus != ? ORDER BY c.nextCheckTime ASC FETCH FIRST ? ROWS ONLY");
-            selStmt.setLong(1, time);
-            selStmt.setInt(2, CheckConstants.RESULT_MAINTENANCE);
-            selStmt.setInt(3, globals.getJobBatchSize());
-            //Below is redundant with above and may cause ArrayIndexOutofBounds errors
-            //selStmt.setMaxRows(globals.getJobBatchSize());
-            ResultSet checksToRun = selStmt.executeQuery();
-            netlogger.debug(netLog.end("maddash.CheckSchedulerJob.execute.queryDb"));
-            
-            while(checksToRun.next()){
-                totalJobCount++;
-                if(globals.isCheckScheduled(checksToRun.getInt(1))){
-                    continue;
+                "c.rowName, c.colName, c.checkName, t.checkType, t.checkParams, t.checkInterval, " +
+                "t.retryInterval, t.retryAttempts, t.timeout, c.statusMessage, c.nextCheckTime, " +
+                "c.checkStatus, c.prevResultCode, c.resultCount FROM checkTemplates AS t, " +
+                "checks AS c WHERE c.active = 1 AND " +
+                "t.id = c.checkTemplateId");
+            ResultSet results = selStmt.executeQuery();
+            synchronized(this){
+                //clear flag first so a request made while loading triggers another load
+                this.reloadRequested = false;
+                HashMap<Integer, ScheduledCheck> newChecks = new HashMap<Integer, ScheduledCheck>();
+                PriorityQueue<ScheduledCheck> newQueue = new PriorityQueue<ScheduledCheck>();
+                int newRunningCount = 0;
+                while(results.next()){
+                    ScheduledCheck check = new ScheduledCheck();
+                    check.id = results.getInt(1);
+                    check.gridName = results.getString(2);
+                    check.rowName = results.getString(3);
+                    check.colName = results.getString(4);
+                    check.checkName = results.getString(5);
+                    check.checkType = results.getString(6);
+                    check.checkParams = results.getString(7);
+                    check.checkInterval = results.getInt(8);
+                    check.retryInterval = results.getInt(9);
+                    check.retryAttempts = results.getInt(10);
+                    check.timeout = results.getInt(11);
+                    check.statusMessage = results.getString(12);
+                    check.nextCheckTime = results.getLong(13);
+                    check.checkStatus = results.getInt(14);
+                    check.prevResultCode = results.getInt(15);
+                    check.resultCount = results.getInt(16);
+                    check.maintenance = (check.checkStatus == CheckConstants.RESULT_MAINTENANCE);
+                    ScheduledCheck oldCheck = this.checks.get(check.id);
+                    if(oldCheck != null){
+                        //maintenance overwrites the status in the database so trust memory
+                        check.checkStatus = oldCheck.checkStatus;
+                        check.prevResultCode = oldCheck.prevResultCode;
+                        check.resultCount = oldCheck.resultCount;
+                    }
+                    if(oldCheck != null && oldCheck.running){
+                        check.running = true;
+                        newRunningCount++;
+                    }else{
+                        newQueue.add(check);
+                    }
+                    newChecks.put(check.id, check);
                 }
-                String jobKey =  UUID.randomUUID().toString();
-                String triggerName = "runCheckTrigger-" + jobKey;
-                String jobName = "runCheckJob-" + jobKey;
-                Trigger trigger = newTrigger()
-                        .withIdentity(triggerName)
-                        .startNow()
-                        .build();
-                JobDataMap dataMap = new JobDataMap();
-                dataMap.put("checkId", checksToRun.getInt(1));
-                dataMap.put("gridName", checksToRun.getString(2));
-                dataMap.put("rowName", checksToRun.getString(3));
-                dataMap.put("colName", checksToRun.getString(4));
-                dataMap.put("checkType", globals.getCheckTypeClassMap().get(checksToRun.getString(5)));
-                dataMap.put("checkParams", checksToRun.getString(6));
-                dataMap.put("checkInterval", checksToRun.getInt(7));
-                dataMap.put("retryInterval", checksToRun.getInt(8));
-                dataMap.put("retryAttempts", checksToRun.getInt(9));
-                dataMap.put("timeout", checksToRun.getInt(10));
-                dataMap.put("statusMessage", checksToRun.getString(11));
-                dataMap.put("rowVars", DimensionUtil.getParams(checksToRun.getString(3), checksToRun.getString(4), conn));
-                dataMap.put("colVars", DimensionUtil.getParams(checksToRun.getString(4), checksToRun.getString(3),conn));
-                JobDetail jobDetail = newJob(RunCheckJob.class)
-                        .withIdentity(jobName, "RUN_CHECKS")
-                        .usingJobData(dataMap)
-                        .build();
-                globals.updateScheduledChecks(checksToRun.getInt(1), true);
-                globals.getScheduler().scheduleJob(jobDetail, trigger);
-                schedJobCount++;
+                this.checks = newChecks;
+                this.queue = newQueue;
+                //blocked checks were not running so are in the new queue
+                this.blockedChecks.clear();
+                this.runningCount = newRunningCount;
+                netlogger.info(netLog.end("maddash.CheckSchedulerJob.loadChecks"));
+                log.debug("Loaded " + newChecks.size() + " checks into schedule");
+                this.notifyAll();
             }
             conn.close();
-            netlogger.info(netLog.end("maddash.CheckSchedulerJob.execute"));
-            log.debug("Scheduled " + schedJobCount + "/" + totalJobCount + " new jobs");
-        }catch(SchedulerException e){
+        }catch(SQLException e){
             if(conn != null){
                 try{
                     conn.close();
                 }catch(SQLException e2){}
             }
-            String msg = "The scheduler threw an exception. This often happens during configuration reloading and can be ignored. Exact error is: " + e.getMessage();
+            netlogger.error(netLog.error("maddash.CheckSchedulerJob.loadChecks", e.getMessage()));
+            throw e;
+        }
+    }
+    
+    /*
+     * Blocks until at least one check is due and there is room to run it. Returns 
+     * an empty list if woken early because the job is stopping or needs to reload.
+     */
+    synchronized private List<ScheduledCheck> waitForDueChecks() throws InterruptedException{
+        List<ScheduledCheck> dueChecks = new ArrayList<ScheduledCheck>();
+        int jobBatchSize = MaDDashGlobals.getInstance().getJobBatchSize();
+        while(this.running && !this.reloadRequested){
+            long now = System.currentTimeMillis();
+            while(!this.queue.isEmpty() && this.runningCount < jobBatchSize && 
+                    this.queue.peek().nextCheckTime <= now/1000){
+                ScheduledCheck check = this.queue.poll();
+                if(check.maintenance){
+                    check.held = true;
+                    continue;
+                }
+                //wait outside the queue so a busy type doesn't hold a thread
+                Semaphore semaphore = this.checkTypeSemaphores.get(check.checkType);
+                if(semaphore != null && !semaphore.tryAcquire()){
+                    check.blocked = true;
+                    if(!this.blockedChecks.containsKey(check.checkType)){
+                        this.blockedChecks.put(check.checkType, new ArrayList<ScheduledCheck>());
+                    }
+                    this.blockedChecks.get(check.checkType).add(check);
+                    continue;
+                }
+                check.running = true;
+                this.runningCount++;
+                dueChecks.add(check);
+            }
+            if(!dueChecks.isEmpty()){
+                break;
+            }
+            
+            //sleep until next check is due or something changes
+            long sleepTime = DEFAULT_SLEEP_TIME;
+            if(!this.queue.isEmpty() && this.runningCount < jobBatchSize){
+                sleepTime = Math.max(1, this.queue.peek().nextCheckTime*1000 - now);
+            }
+            this.wait(sleepTime);
+        }
+        
+        return dueChecks;
+    }
+    
+    /**
+     * Hands the given checks to the thread pool to be run
+     * 
+     * @param dueChecks the checks to run
+     */
+    public void execute(List<ScheduledCheck> dueChecks) {
+        NetLogger netLog = NetLogger.getTlogger();
+        netlogger.info(netLog.start("maddash.CheckSchedulerJob.execute"));
+        int schedJobCount = 0;
+        
+        try{
+            MaDDashGlobals globals = MaDDashGlobals.getInstance();
+            //variables only change on config reload so are looked up in memory
+            DimensionIndex dimensionIndex = globals.getDimensionIndex();
+            for(ScheduledCheck check : dueChecks){
+                CheckTask task = new CheckTask(check.id, check.gridName, check.rowName, 
+                        check.colName, check.checkName, 
+                        globals.getCheckTypeClassMap().get(check.checkType), check.checkParams,
+                        check.checkInterval, check.retryInterval, check.retryAttempts, 
+                        check.timeout, check.statusMessage, check.checkStatus, 
+                        check.prevResultCode, check.resultCount, 
+                        dimensionIndex.getVars(check.rowName, check.colName),
+                        dimensionIndex.getVars(check.colName, check.rowName));
+                this.checkExecutor.execute(new RunCheckJob(task, check.checkType, 
+                        this.checkTypeSemaphores.containsKey(check.checkType) ? this : null));
+                schedJobCount++;
+            }
+            netlogger.info(netLog.end("maddash.CheckSchedulerJob.execute"));
+            log.debug("Scheduled " + schedJobCount + "/" + dueChecks.size() + " new jobs");
+        }catch(RejectedExecutionException e){
+            this.requeue(dueChecks.subList(schedJobCount, dueChecks.size()));
+            String msg = "The check executor rejected a check. This often happens during configuration reloading and can be ignored. Exact error is: " + e.getMessage();
             netlogger.warn(netLog.error("maddash.CheckSchedulerJob.execute", msg));
             log.warn(msg);
         }catch(Exception e){
-            if(conn != null){
-                try{
-                    conn.close();
-                }catch(SQLException e2){}
-            }
+            this.requeue(dueChecks.subList(schedJobCount, dueChecks.size()));
             netlogger.info(netLog.error("maddash.CheckSchedulerJob.execute", e.getMessage()));
             log.error("Error scheduling job " + e.getMessage());
             e.printStackTrace();
@@ -158,5 +427,17 @@ public class CheckSchedulerJob extends Thread{
         }
         
     }
+    
+    /*
+     * Puts checks that could not be handed off back in the queue. They'll be 
+     * tried again after the usual sleep time.
+     */
+    private void requeue(List<ScheduledCheck> failedChecks){
+        long retryTime = System.currentTimeMillis()/1000 + DEFAULT_SLEEP_TIME/1000;
+        for(ScheduledCheck check : failedChecks){
+            this.checkFinished(check.id, retryTime, null);
+            this.checkTypeFinished(check.checkType);
+        }
+    }
 
 }
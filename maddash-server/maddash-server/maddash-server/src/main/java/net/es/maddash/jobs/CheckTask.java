@@ -0,0 +1,178 @@
+package net.es.maddash.jobs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything needed to run a check once. Built by the CheckSchedulerJob when a check
+ * comes due and handed to a RunCheckJob. Instances can not be modified after creation.
+ */
+public final class CheckTask {
+    final private int checkId;
+    final private String gridName;
+    final private String rowName;
+    final private String colName;
+    final private String checkName;
+    final private Class checkClass;
+    final private String checkParams;
+    final private int checkInterval;
+    final private int retryInterval;
+    final private int retryAttempts;
+    final private int timeout;
+    final private String statusMessage;
+    final private int checkStatus;
+    final private int prevResultCode;
+    final private int resultCount;
+    final private Map<String,String> rowVars;
+    final private Map<String,String> colVars;
+
+    public CheckTask(int checkId, String gridName, String rowName, String colName,
+            String checkName, Class checkClass, String checkParams, int checkInterval,
+            int retryInterval, int retryAttempts, int timeout, String statusMessage,
+            int checkStatus, int prevResultCode, int resultCount, Map<String,String> rowVars, Map<String,String> colVars){
+        this.checkId = checkId;
+        this.gridName = gridName;
+        this.rowName = rowName;
+        this.colName = colName;
+        this.checkName = checkName;
+        this.checkClass = checkClass;
+        this.checkParams = checkParams;
+        this.checkInterval = checkInterval;
+        this.retryInterval = retryInterval;
+        this.retryAttempts = retryAttempts;
+        this.timeout = timeout;
+        this.statusMessage = statusMessage;
+        this.checkStatus = checkStatus;
+        this.prevResultCode = prevResultCode;
+        this.resultCount = resultCount;
+        this.rowVars = this.copyVars(rowVars);
+        this.colVars = this.copyVars(colVars);
+    }
+
+    private Map<String,String> copyVars(Map<String,String> vars){
+        if(vars == null){
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new HashMap<String,String>(vars));
+    }
+
+    /**
+     * @return the id of the check
+     */
+    public int getCheckId() {
+        return this.checkId;
+    }
+
+    /**
+     * @return the name of the grid containing the check
+     */
+    public String getGridName() {
+        return this.gridName;
+    }
+
+    /**
+     * @return the name of the row containing the check
+     */
+    public String getRowName() {
+        return this.rowName;
+    }
+
+    /**
+     * @return the name of the column containing the check
+     */
+    public String getColName() {
+        return this.colName;
+    }
+
+    /**
+     * @return the name of the check
+     */
+    public String getCheckName() {
+        return this.checkName;
+    }
+
+    /**
+     * @return the class implementing the check
+     */
+    public Class getCheckClass() {
+        return this.checkClass;
+    }
+
+    /**
+     * @return the check parameters as a JSON string
+     */
+    public String getCheckParams() {
+        return this.checkParams;
+    }
+
+    /**
+     * @return the time in seconds between runs of the check
+     */
+    public int getCheckInterval() {
+        return this.checkInterval;
+    }
+
+    /**
+     * @return the time in seconds between runs of the check when its state is changing
+     */
+    public int getRetryInterval() {
+        return this.retryInterval;
+    }
+
+    /**
+     * @return the number of times a new state must be seen before the status changes
+     */
+    public int getRetryAttempts() {
+        return this.retryAttempts;
+    }
+
+    /**
+     * @return the time in seconds the check may run before it is stopped
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * @return the status message of the check when it was scheduled
+     */
+    public String getStatusMessage() {
+        return this.statusMessage;
+    }
+
+    /**
+     * @return the status of the check when it was scheduled
+     */
+    public int getCheckStatus() {
+        return this.checkStatus;
+    }
+
+    /**
+     * @return the result code returned the last time the check ran
+     */
+    public int getPrevResultCode() {
+        return this.prevResultCode;
+    }
+
+    /**
+     * @return the number of times in a row the last result code was seen without changing the status
+     */
+    public int getResultCount() {
+        return this.resultCount;
+    }
+
+    /**
+     * @return the template variables of the row
+     */
+    public Map<String,String> getRowVars() {
+        return this.rowVars;
+    }
+
+    /**
+     * @return the template variables of the column
+     */
+    public Map<String,String> getColVars() {
+        return this.colVars;
+    }
+}
@@ -2,10 +2,13 @@ package net.es.maddash.jobs;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 
 import net.es.maddash.MaDDashGlobals;
 import net.es.maddash.NetLogger;
+import net.es.maddash.db.ResultsStore;
 
 import org.apache.log4j.Logger;
 import org.quartz.Job;
@@ -15,7 +18,7 @@ import org.quartz.JobExecutionException;
 public class CleanDBJob implements Job{
     Logger log = Logger.getLogger(CheckSchedulerJob.class);
     Logger netlogger = Logger.getLogger("netlogger");
-    
+
     public void execute(JobExecutionContext context) throws JobExecutionException {
         NetLogger netLog = NetLogger.getTlogger();
         Connection conn = null;
@@ -25,16 +28,29 @@ public class CleanDBJob implements Job{
             conn = globals.getDataSource().getConnection();
             long oldestAllowedTime = System.currentTimeMillis()/1000L - globals.getDbDataMaxAge();
             this.log.info("oldestAllowedTime=" + oldestAllowedTime);
-            
-            //clean-up results
-            PreparedStatement resultsStmt = conn.prepareStatement("DELETE FROM results WHERE checkTime < ?");
-            resultsStmt.setLong(1, oldestAllowedTime);
-            resultsStmt.execute();
-            
-            PreparedStatement checkStmt = conn.prepareStatement("DELETE FROM checks WHERE active=0 AND nextCheckTime < ?");
-            checkStmt.setLong(1, oldestAllowedTime);
-            checkStmt.execute();
-            
+
+            //clean-up results by dropping daily tables that have fully expired
+            int bucketsDropped = globals.getResultsStore().dropBefore(oldestAllowedTime, conn);
+            this.log.info("Dropped " + bucketsDropped + " result tables");
+
+            //results from before daily tables still need rows deleted
+            if(globals.getResultsStore().hasLegacyTable()){
+                this.deleteInChunks(ResultsStore.LEGACY_TABLE, "checkTime < ?", oldestAllowedTime,
+                        globals.getDbCleanChunkSize(), globals.getDbCleanChunkPause(), conn);
+            }
+
+            this.deleteInChunks("checks", "active=0 AND nextCheckTime < ?", oldestAllowedTime,
+                    globals.getDbCleanChunkSize(), globals.getDbCleanChunkPause(), conn);
+
+            //rollups are kept longer than results
+            if(globals.getDbRollupMaxAge() >= 0){
+                long oldestRollupTime = System.currentTimeMillis()/1000L - globals.getDbRollupMaxAge();
+                this.deleteInChunks("resultRollups", "periodStart < ?", oldestRollupTime,
+                        globals.getDbCleanChunkSize(), globals.getDbCleanChunkPause(), conn);
+                this.deleteInChunks("resultRollupStats", "periodStart < ?", oldestRollupTime,
+                        globals.getDbCleanChunkSize(), globals.getDbCleanChunkPause(), conn);
+            }
+
             conn.close();
             netlogger.info(netLog.end("maddash.CleanDBJob.execute"));
         }catch(Exception e){
@@ -48,7 +64,72 @@ public class CleanDBJob implements Job{
             e.printStackTrace();
             throw new RuntimeException(e.getMessage());
         }
-        
+
+    }
+
+    /*
+     * Deletes matching rows a range of ids at a time. Each delete commits on its own so
+     * locks are only held briefly, and we pause between deletes so other writers get in.
+     */
+    private long deleteInChunks(String table, String where, long oldestAllowedTime,
+            int chunkSize, long chunkPause, Connection conn) throws SQLException, InterruptedException{
+        NetLogger netLog = NetLogger.getTlogger();
+        HashMap<String,String> netLogParams = new HashMap<String,String>();
+        netLogParams.put("table", table);
+        netlogger.info(netLog.start("maddash.CleanDBJob.delete", null, null, netLogParams));
+        long startTime = System.currentTimeMillis();
+        long deleted = 0;
+
+        if(chunkSize <= 0){
+            PreparedStatement deleteStmt = conn.prepareStatement("DELETE FROM " + table + " WHERE " + where);
+            deleteStmt.setLong(1, oldestAllowedTime);
+            deleted = deleteStmt.executeUpdate();
+        }else{
+            //only walk the ids that have something to delete
+            PreparedStatement idRangeStmt = conn.prepareStatement("SELECT MIN(id), MAX(id) FROM " + 
+                    table + " WHERE " + where);
+            idRangeStmt.setLong(1, oldestAllowedTime);
+            ResultSet idRange = idRangeStmt.executeQuery();
+            long minId = 0;
+            long maxId = -1;
+            if(idRange.next()){
+                minId = idRange.getLong(1);
+                maxId = idRange.getLong(2);
+                //MIN and MAX are NULL when no rows match so skip the loop
+                if(idRange.wasNull()){
+                    maxId = -1;
+                }
+            }
+            idRange.close();
+
+            PreparedStatement deleteStmt = conn.prepareStatement("DELETE FROM " + table +
+                    " WHERE id >= ? AND id < ? AND " + where);
+            for(long chunkStart = minId; chunkStart <= maxId; chunkStart += chunkSize){
+                deleteStmt.setLong(1, chunkStart);
+                deleteStmt.setLong(2, chunkStart + chunkSize);
+                deleteStmt.setLong(3, oldestAllowedTime);
+                deleted += deleteStmt.executeUpdate();
+
+                HashMap<String,String> chunkParams = new HashMap<String,String>(netLogParams);
+                chunkParams.put("idStart", chunkStart + "");
+                chunkParams.put("idEnd", Math.min(chunkStart + chunkSize - 1, maxId) + "");
+                chunkParams.put("rowsDeleted", deleted + "");
+                chunkParams.put("rowsPerSecond", this.rate(deleted, startTime) + "");
+                netlogger.debug(netLog.end("maddash.CleanDBJob.delete.chunk", null, null, chunkParams));
+                Thread.sleep(chunkPause);
+            }
+            deleteStmt.close();
+        }
+
+        netLogParams.put("rowsDeleted", deleted + "");
+        netLogParams.put("rowsPerSecond", this.rate(deleted, startTime) + "");
+        netlogger.info(netLog.end("maddash.CleanDBJob.delete", null, null, netLogParams));
+        this.log.info("Deleted " + deleted + " rows from " + table);
+        return deleted;
     }
 
+    private long rate(long rows, long startTime){
+        long elapsed = System.currentTimeMillis() - startTime;
+        return (elapsed > 0 ? rows * 1000 / elapsed : rows);
+    }
 }
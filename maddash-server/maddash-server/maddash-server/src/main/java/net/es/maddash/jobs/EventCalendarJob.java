@@ -2,9 +2,13 @@ package net.es.maddash.jobs;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
+import net.es.maddash.GridCache;
 import net.es.maddash.MaDDashGlobals;
 import net.es.maddash.NetLogger;
 import net.es.maddash.checks.CheckConstants;
@@ -51,11 +55,17 @@ public class EventCalendarJob extends Thread{
             expireEventsStmt.setLong(1, now);
             
             //set status on all started events
+            PreparedStatement selDownedChecksStmt = conn.prepareStatement("SELECT gridName, rowName, colName, checkName, id FROM checks WHERE checkStatus!=? AND id IN (SELECT DISTINCT checkId FROM eventChecks INNER JOIN events ON eventChecks.eventId = events.id WHERE events.startTime <= ? AND events.changeStatus=1)");
+            selDownedChecksStmt.setInt(1, CheckConstants.RESULT_MAINTENANCE);
+            selDownedChecksStmt.setLong(2, now);
             PreparedStatement updateChecksStmt = conn.prepareStatement("UPDATE checks SET checkStatus=? WHERE id IN (SELECT DISTINCT checkId FROM eventChecks INNER JOIN events ON eventChecks.eventId = events.id WHERE events.startTime <= ? AND events.changeStatus=1)");
             updateChecksStmt.setInt(1, CheckConstants.RESULT_MAINTENANCE);
             updateChecksStmt.setLong(2, now);
             
             //reset orphaned checks
+            PreparedStatement selResetChecksStmt = conn.prepareStatement("SELECT gridName, rowName, colName, checkName, id FROM checks WHERE checkStatus=? AND id NOT IN (SELECT DISTINCT checkId FROM eventChecks INNER JOIN events ON eventChecks.eventId = events.id WHERE events.startTime <= ?)");
+            selResetChecksStmt.setInt(1, CheckConstants.RESULT_MAINTENANCE);
+            selResetChecksStmt.setLong(2, now);
             PreparedStatement resetChecksStmt = conn.prepareStatement("UPDATE checks SET checkStatus=? WHERE checkStatus=? AND id NOT IN (SELECT DISTINCT checkId FROM eventChecks INNER JOIN events ON eventChecks.eventId = events.id WHERE events.startTime <= ?)");
             resetChecksStmt.setInt(1, CheckConstants.RESULT_NOTRUN);
             resetChecksStmt.setInt(2, CheckConstants.RESULT_MAINTENANCE);
@@ -64,8 +74,14 @@ public class EventCalendarJob extends Thread{
             //run all checks
             netLogParams.put("eventChecksExpired", expireEventChecksStmt.executeUpdate()+"");
             netLogParams.put("eventsExpired", expireEventsStmt.executeUpdate()+"");
+            List<String[]> downedChecks = this.readChecks(selDownedChecksStmt.executeQuery());
             netLogParams.put("checksDowned", updateChecksStmt.executeUpdate()+"");
+            this.updateGridCache(globals.getGridCache(), downedChecks, CheckConstants.RESULT_MAINTENANCE);
+            this.updateCheckScheduler(globals.getCheckScheduler(), downedChecks, true);
+            List<String[]> resetChecks = this.readChecks(selResetChecksStmt.executeQuery());
             netLogParams.put("checksReset", resetChecksStmt.executeUpdate()+"");
+            this.updateGridCache(globals.getGridCache(), resetChecks, CheckConstants.RESULT_NOTRUN);
+            this.updateCheckScheduler(globals.getCheckScheduler(), resetChecks, false);
             conn.close();
             //System.out.println(netLog.end("maddash.EventCalendarJob.execute", null, null, netLogParams));
             netlogger.debug(netLog.end("maddash.EventCalendarJob.execute", null, null, netLogParams));
@@ -82,4 +98,28 @@ public class EventCalendarJob extends Thread{
         }
         
     }
+    
+    private List<String[]> readChecks(ResultSet checks) throws SQLException{
+        List<String[]> checkList = new ArrayList<String[]>();
+        while(checks.next()){
+            checkList.add(new String[]{checks.getString(1), checks.getString(2), 
+                    checks.getString(3), checks.getString(4), checks.getString(5)});
+        }
+        return checkList;
+    }
+    
+    private void updateGridCache(GridCache gridCache, List<String[]> changedChecks, int status){
+        for(String[] check : changedChecks){
+            gridCache.updateCheck(check[0], check[1], check[2], check[3], status, null, -1);
+        }
+    }
+    
+    private void updateCheckScheduler(CheckSchedulerJob checkScheduler, List<String[]> changedChecks, boolean maintenance){
+        if(checkScheduler == null){
+            return;
+        }
+        for(String[] check : changedChecks){
+            checkScheduler.setMaintenance(Integer.parseInt(check[4]), maintenance);
+        }
+    }
 }
@@ -0,0 +1,276 @@
+package net.es.maddash.jobs;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.es.maddash.MaDDashGlobals;
+import net.es.maddash.NetLogger;
+import net.es.maddash.checks.CheckConstants;
+import net.es.maddash.checks.CheckResult;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Saves the results of checks to the database. RunCheckJobs hand their results
+ * to this thread which writes them in JDBC batches inside a single transaction.
+ * A batch is written when it reaches the batch size or the flush interval passes
+ * after the first result in the batch arrived. The grid cache and the check scheduler
+ * are only updated once the batch is committed.
+ */
+public class ResultWriter extends Thread{
+    Logger log = Logger.getLogger(ResultWriter.class);
+    Logger netlogger = Logger.getLogger("netlogger");
+    private LinkedBlockingQueue<PendingResult> queue;
+    private int batchSize;
+    private long flushInterval;
+    private volatile boolean running;
+
+    /* A result waiting to be written along with the state calculated for it */
+    private class PendingResult {
+        CheckTask task;
+        CheckResult result;
+        long time;
+        String bucket;
+        long nextTime;
+        int resultCount;
+        int finalStatus;
+        String finalStatusMessage;
+    }
+
+    /**
+     * Creates a new writer
+     *
+     * @param name the name of the thread
+     * @param batchSize the maximum number of results to write in one transaction
+     * @param flushInterval the maximum time in milliseconds a result waits to be written
+     */
+    public ResultWriter(String name, int batchSize, long flushInterval){
+        super(name);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.queue = new LinkedBlockingQueue<PendingResult>();
+        this.running = true;
+    }
+
+    public void run(){
+        //keep going after being disabled until all queued results are written
+        while(this.running || !this.queue.isEmpty()){
+            try{
+                List<PendingResult> batch = this.nextBatch();
+                if(!batch.isEmpty()){
+                    this.flush(batch);
+                }
+            }catch(Exception e){
+                log.error("Error writing results: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queues the result of a check to be written
+     *
+     * @param task the check that was run
+     * @param result the result of the check
+     */
+    public void add(CheckTask task, CheckResult result){
+        PendingResult pending = new PendingResult();
+        pending.task = task;
+        pending.result = result;
+        pending.time = System.currentTimeMillis()/1000;
+        this.queue.add(pending);
+    }
+
+    /**
+     * Stops the writer once all queued results are written
+     */
+    public void disableRunning(){
+        this.running = false;
+    }
+
+    private List<PendingResult> nextBatch() throws InterruptedException{
+        List<PendingResult> batch = new ArrayList<PendingResult>();
+        PendingResult pending = this.queue.poll(this.flushInterval, TimeUnit.MILLISECONDS);
+        if(pending == null){
+            return batch;
+        }
+        batch.add(pending);
+        //collect whatever else arrives before the interval is up
+        long deadline = System.currentTimeMillis() + this.flushInterval;
+        while(batch.size() < this.batchSize){
+            long wait = deadline - System.currentTimeMillis();
+            if(wait <= 0){
+                this.queue.drainTo(batch, this.batchSize - batch.size());
+                break;
+            }
+            pending = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+            if(pending == null){
+                break;
+            }
+            batch.add(pending);
+        }
+        return batch;
+    }
+
+    private void flush(List<PendingResult> batch){
+        NetLogger netLog = NetLogger.getTlogger();
+        MaDDashGlobals globals = MaDDashGlobals.getInstance();
+        CheckSchedulerJob checkScheduler = globals.getCheckScheduler();
+        netlogger.debug(netLog.start("maddash.ResultWriter.flush"));
+        Connection conn = null;
+        try{
+            conn = globals.getDataSource().getConnection();
+            //create any new daily tables outside the transaction so a rollback keeps them
+            for(PendingResult pending : batch){
+                pending.bucket = globals.getResultsStore().getBucket(pending.time, conn);
+            }
+            conn.setAutoCommit(false);
+            this.writeBatch(batch, conn);
+            conn.commit();
+            conn.setAutoCommit(true);
+            conn.close();
+            netlogger.debug(netLog.end("maddash.ResultWriter.flush", null, null,
+                    this.countFields(batch)));
+        }catch(Exception e){
+            if(conn != null){
+                try {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                } catch (SQLException e1) {}
+                try {
+                    conn.close();
+                } catch (SQLException e1) {}
+            }
+            netlogger.error(netLog.error("maddash.ResultWriter.flush", e.getMessage()));
+            log.error("Unable to save " + batch.size() + " results: " + e.getMessage());
+            e.printStackTrace();
+            //results were not saved so try again after the retry interval
+            if(checkScheduler != null){
+                for(PendingResult pending : batch){
+                    checkScheduler.checkFinished(pending.task.getCheckId(),
+                            System.currentTimeMillis()/1000 + pending.task.getRetryInterval(), null);
+                }
+            }
+            return;
+        }
+
+        //results are committed so keep in-memory state in sync and queue next runs
+        for(PendingResult pending : batch){
+            CheckTask task = pending.task;
+            globals.getGridCache().updateCheck(task.getGridName(), task.getRowName(),
+                    task.getColName(), task.getCheckName(), pending.finalStatus,
+                    pending.finalStatusMessage, pending.time);
+            log.debug("Next run of " + task.getGridName() + "." + task.getRowName() + "." +
+                    task.getColName()  + " is " + new Date(pending.nextTime*1000));
+            if(checkScheduler != null){
+                checkScheduler.checkFinished(task.getCheckId(), pending.nextTime,
+                        pending.finalStatusMessage, pending.finalStatus, 
+                        pending.result.getResultCode(), pending.resultCount);
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingResult> batch, Connection conn) throws SQLException{
+        NetLogger netLog = NetLogger.getTlogger();
+        Map<String, PreparedStatement> insertResStmts = new LinkedHashMap<String, PreparedStatement>();
+        PreparedStatement updateCheckStmt = conn.prepareStatement("UPDATE checks SET prevCheckTime=?, nextCheckTime=?, checkStatus=?, prevResultCode=?, statusMessage=?, resultCount=? WHERE id=?");
+
+        for(PendingResult pending : batch){
+            this.calculateStatus(pending);
+
+            String statsString = null;
+            if(pending.result.getStats() != null){
+                JSONObject tmpJson = JSONObject.fromObject(pending.result.getStats());
+                statsString = tmpJson.toString();
+            }
+            PreparedStatement insertResStmt = insertResStmts.get(pending.bucket);
+            if(insertResStmt == null){
+                insertResStmt = conn.prepareStatement("INSERT INTO " + pending.bucket + " VALUES(DEFAULT, ?, ?, ?, ?, ?, ?, ?)");
+                insertResStmts.put(pending.bucket, insertResStmt);
+            }
+            insertResStmt.setInt(1, pending.task.getCheckId());
+            insertResStmt.setLong(2, pending.time);
+            insertResStmt.setInt(3, pending.result.getResultCode());
+            insertResStmt.setString(4, pending.result.getMessage());
+            insertResStmt.setString(5, statsString);
+            insertResStmt.setInt(6, pending.resultCount);
+            insertResStmt.setInt(7, pending.finalStatus);
+            insertResStmt.addBatch();
+
+            updateCheckStmt.setLong(1, pending.time);
+            updateCheckStmt.setLong(2, pending.nextTime);
+            updateCheckStmt.setInt(3, pending.finalStatus);
+            updateCheckStmt.setInt(4, pending.result.getResultCode());
+            updateCheckStmt.setString(5, pending.finalStatusMessage);
+            updateCheckStmt.setInt(6, pending.resultCount);
+            updateCheckStmt.setInt(7, pending.task.getCheckId());
+            updateCheckStmt.addBatch();
+        }
+        netlogger.debug(netLog.start("maddash.ResultWriter.flush.insert"));
+        for(PreparedStatement insertResStmt : insertResStmts.values()){
+            insertResStmt.executeBatch();
+            insertResStmt.close();
+        }
+        netlogger.debug(netLog.end("maddash.ResultWriter.flush.insert"));
+
+        netlogger.debug(netLog.start("maddash.ResultWriter.flush.update"));
+        updateCheckStmt.executeBatch();
+        updateCheckStmt.close();
+        netlogger.debug(netLog.end("maddash.ResultWriter.flush.update"));
+    }
+
+    /*
+     * Determines the status to display and when to run next. A new result only changes
+     * the status once it has been seen retryAttempts times in a row. Uses the state the 
+     * check had when it was scheduled so no lookup of previous results is needed.
+     */
+    private void calculateStatus(PendingResult pending){
+        CheckResult result = pending.result;
+        CheckTask task = pending.task;
+
+        //find last result
+        int lastReturnCode = task.getPrevResultCode();
+        int lastResultCount = task.getResultCount();
+        int lastCheckStatus = task.getCheckStatus();
+        if(lastCheckStatus == CheckConstants.RESULT_NOTRUN || 
+                lastCheckStatus == CheckConstants.RESULT_MAINTENANCE){
+            //no real result to compare against so take the new one as is
+            lastReturnCode = result.getResultCode();
+            lastResultCount = 0;
+            lastCheckStatus = result.getResultCode();
+        }
+
+        //determine next time and final status
+        pending.nextTime = pending.time + task.getCheckInterval();
+        pending.resultCount = 0;
+        pending.finalStatus = result.getResultCode();
+        pending.finalStatusMessage = result.getMessage();
+        if(result.getResultCode() != lastCheckStatus){
+            pending.resultCount = 1;
+            if(lastReturnCode != lastCheckStatus){
+                pending.resultCount += lastResultCount;
+            }
+            if(pending.resultCount < task.getRetryAttempts()){
+                pending.finalStatus = lastCheckStatus;
+                pending.finalStatusMessage = task.getStatusMessage();
+                pending.nextTime = pending.time + task.getRetryInterval();
+            }
+        }
+    }
+
+    private HashMap<String,String> countFields(List<PendingResult> batch){
+        HashMap<String,String> netLogFields = new HashMap<String,String>();
+        netLogFields.put("count", batch.size() + "");
+        return netLogFields;
+    }
+}
@@ -0,0 +1,338 @@
+package net.es.maddash.jobs;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import net.es.maddash.MaDDashGlobals;
+import net.es.maddash.NetLogger;
+import net.es.maddash.checks.CheckConstants;
+
+import org.apache.log4j.Logger;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Summarizes check results into hourly and daily rollups so history can be kept
+ * much longer than raw results. Hourly rollups are built from the raw results of
+ * each completed hour and daily rollups from the hourly rollups of each completed
+ * day. Each rollup counts results by status, tracks status transitions and keeps
+ * the min, max and sum of every numeric value in the returned parameters.
+ */
+public class RollupJob implements Job{
+    Logger log = Logger.getLogger(RollupJob.class);
+    Logger netlogger = Logger.getLogger("netlogger");
+
+    final static public int RESOLUTION_HOURLY = 3600;
+    final static public int RESOLUTION_DAILY = 86400;
+
+    /* The summary of one check over one period */
+    private class Rollup {
+        int[] counts = new int[5];
+        int transitionCount = 0;
+        long firstTransition = -1;
+        long lastTransition = -1;
+        int lastStatus = CheckConstants.RESULT_NOTRUN;
+        Map<String, double[]> stats = new TreeMap<String, double[]>();
+
+        void addResult(long time, int status, Integer prevStatus, String returnParams){
+            this.counts[countIndex(status)]++;
+            if(prevStatus != null && prevStatus != status){
+                this.addTransitions(1, time, time);
+            }
+            this.lastStatus = status;
+            if(returnParams == null){
+                return;
+            }
+            JsonObject params = null;
+            try{
+                params = Json.createReader(new StringReader(returnParams)).readObject();
+            }catch(Exception e){
+                return;
+            }
+            for(String name : params.keySet()){
+                Double value = numericValue(params.get(name));
+                if(value == null){
+                    continue;
+                }
+                double[] stat = this.stats.get(name);
+                if(stat == null){
+                    this.stats.put(name, new double[]{1, value, value, value});
+                }else{
+                    stat[0]++;
+                    stat[1] = Math.min(stat[1], value);
+                    stat[2] = Math.max(stat[2], value);
+                    stat[3] += value;
+                }
+            }
+        }
+
+        void addTransitions(int count, long first, long last){
+            this.transitionCount += count;
+            if(this.firstTransition < 0){
+                this.firstTransition = first;
+            }
+            this.lastTransition = last;
+        }
+    }
+
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        NetLogger netLog = NetLogger.getTlogger();
+        HashMap<String,String> netLogParams = new HashMap<String,String>();
+        Connection conn = null;
+        try{
+            netlogger.info(netLog.start("maddash.RollupJob.execute"));
+            MaDDashGlobals globals = MaDDashGlobals.getInstance();
+            conn = globals.getDataSource().getConnection();
+            long now = System.currentTimeMillis()/1000L;
+
+            //hourly rollups from raw results. never look further back than raw results are kept
+            long currentHour = now - now % RESOLUTION_HOURLY;
+            long hour = this.nextPeriod(RESOLUTION_HOURLY, conn);
+            if(globals.getDbDataMaxAge() >= 0){
+                hour = Math.max(hour, now - globals.getDbDataMaxAge());
+            }else if(hour <= 0){
+                hour = now - RESOLUTION_DAILY;
+            }
+            hour -= hour % RESOLUTION_HOURLY;
+            Map<Integer,Integer> lastStatus = this.loadLastStatus(hour - RESOLUTION_DAILY, conn);
+            int hourCount = 0;
+            for(; hour < currentHour; hour += RESOLUTION_HOURLY){
+                this.rollupHour(hour, lastStatus, conn);
+                hourCount++;
+            }
+            netLogParams.put("hours", hourCount + "");
+
+            //daily rollups from hourly rollups
+            long currentDay = now - now % RESOLUTION_DAILY;
+            long day = this.nextPeriod(RESOLUTION_DAILY, conn);
+            if(day <= 0){
+                day = this.firstPeriod(RESOLUTION_HOURLY, conn);
+            }
+            int dayCount = 0;
+            if(day > 0){
+                for(day -= day % RESOLUTION_DAILY; day < currentDay; day += RESOLUTION_DAILY){
+                    this.rollupDay(day, conn);
+                    dayCount++;
+                }
+            }
+            netLogParams.put("days", dayCount + "");
+
+            conn.close();
+            netlogger.info(netLog.end("maddash.RollupJob.execute", null, null, netLogParams));
+        }catch(Exception e){
+            if(conn != null){
+                try{
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }catch(SQLException e2){}
+                try{
+                    conn.close();
+                }catch(SQLException e2){}
+            }
+            netlogger.error(netLog.error("maddash.RollupJob.execute", e.getMessage()));
+            log.error("Error building rollups " + e.getMessage());
+            e.printStackTrace();
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void rollupHour(long hour, Map<Integer,Integer> lastStatus, Connection conn) throws SQLException{
+        Map<Integer, Rollup> rollups = new TreeMap<Integer, Rollup>();
+        //oldest table first so results of each check are seen in order
+        List<String> tables = new ArrayList<String>(MaDDashGlobals.getInstance().getResultsStore().listBuckets(
+                hour, hour + RESOLUTION_HOURLY));
+        Collections.reverse(tables);
+        for(String table : tables){
+            PreparedStatement selStmt = conn.prepareStatement("SELECT checkId, checkTime, checkStatus, " +
+                    "returnParams FROM " + table + " WHERE checkTime >= ? AND checkTime < ? " +
+                    "ORDER BY checkId, checkTime");
+            selStmt.setLong(1, hour);
+            selStmt.setLong(2, hour + RESOLUTION_HOURLY);
+            ResultSet results = selStmt.executeQuery();
+            while(results.next()){
+                int checkId = results.getInt(1);
+                Rollup rollup = rollups.get(checkId);
+                if(rollup == null){
+                    rollup = new Rollup();
+                    rollups.put(checkId, rollup);
+                }
+                int status = results.getInt(3);
+                rollup.addResult(results.getLong(2), status, lastStatus.get(checkId), results.getString(4));
+                lastStatus.put(checkId, status);
+            }
+            selStmt.close();
+        }
+        this.saveRollups(RESOLUTION_HOURLY, hour, rollups, true, conn);
+    }
+
+    private void rollupDay(long day, Connection conn) throws SQLException{
+        Map<Integer, Rollup> rollups = new TreeMap<Integer, Rollup>();
+        PreparedStatement selStmt = conn.prepareStatement("SELECT checkId, okCount, warningCount, " +
+                "criticalCount, unknownCount, otherCount, transitionCount, firstTransition, " +
+                "lastTransition, lastStatus FROM resultRollups WHERE resolution=? AND " +
+                "periodStart >= ? AND periodStart < ? ORDER BY checkId, periodStart");
+        selStmt.setInt(1, RESOLUTION_HOURLY);
+        selStmt.setLong(2, day);
+        selStmt.setLong(3, day + RESOLUTION_DAILY);
+        ResultSet hours = selStmt.executeQuery();
+        while(hours.next()){
+            int checkId = hours.getInt(1);
+            Rollup rollup = rollups.get(checkId);
+            if(rollup == null){
+                rollup = new Rollup();
+                rollups.put(checkId, rollup);
+            }
+            for(int i = 0; i < rollup.counts.length; i++){
+                rollup.counts[i] += hours.getInt(2 + i);
+            }
+            if(hours.getInt(7) > 0){
+                rollup.addTransitions(hours.getInt(7), hours.getLong(8), hours.getLong(9));
+            }
+            rollup.lastStatus = hours.getInt(10);
+        }
+        selStmt.close();
+        this.saveRollups(RESOLUTION_DAILY, day, rollups, false, conn);
+    }
+
+    private void saveRollups(int resolution, long periodStart, Map<Integer, Rollup> rollups,
+            boolean saveStats, Connection conn) throws SQLException{
+        conn.setAutoCommit(false);
+        PreparedStatement insertStmt = conn.prepareStatement("INSERT INTO resultRollups VALUES(DEFAULT, " +
+                "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement insertStatStmt = conn.prepareStatement("INSERT INTO resultRollupStats VALUES(" +
+                "DEFAULT, ?, ?, ?, ?, ?, ?, ?, ?)");
+        for(int checkId : rollups.keySet()){
+            Rollup rollup = rollups.get(checkId);
+            insertStmt.setInt(1, checkId);
+            insertStmt.setInt(2, resolution);
+            insertStmt.setLong(3, periodStart);
+            for(int i = 0; i < rollup.counts.length; i++){
+                insertStmt.setInt(4 + i, rollup.counts[i]);
+            }
+            insertStmt.setInt(9, rollup.transitionCount);
+            if(rollup.transitionCount > 0){
+                insertStmt.setLong(10, rollup.firstTransition);
+                insertStmt.setLong(11, rollup.lastTransition);
+            }else{
+                insertStmt.setNull(10, Types.BIGINT);
+                insertStmt.setNull(11, Types.BIGINT);
+            }
+            insertStmt.setInt(12, rollup.lastStatus);
+            insertStmt.addBatch();
+
+            for(String name : rollup.stats.keySet()){
+                double[] stat = rollup.stats.get(name);
+                insertStatStmt.setInt(1, checkId);
+                insertStatStmt.setInt(2, resolution);
+                insertStatStmt.setLong(3, periodStart);
+                insertStatStmt.setString(4, name);
+                insertStatStmt.setInt(5, (int) stat[0]);
+                insertStatStmt.setDouble(6, stat[1]);
+                insertStatStmt.setDouble(7, stat[2]);
+                insertStatStmt.setDouble(8, stat[3]);
+                insertStatStmt.addBatch();
+            }
+        }
+        insertStmt.executeBatch();
+        insertStatStmt.executeBatch();
+        if(!saveStats){
+            //stats of longer periods are combined from the shorter ones
+            PreparedStatement combineStmt = conn.prepareStatement("INSERT INTO resultRollupStats " +
+                    "(checkId, resolution, periodStart, statName, sampleCount, statMin, statMax, statSum) " +
+                    "SELECT checkId, ?, ?, statName, SUM(sampleCount), MIN(statMin), MAX(statMax), " +
+                    "SUM(statSum) FROM resultRollupStats WHERE resolution=? AND periodStart >= ? AND " +
+                    "periodStart < ? GROUP BY checkId, statName");
+            combineStmt.setInt(1, resolution);
+            combineStmt.setLong(2, periodStart);
+            combineStmt.setInt(3, RESOLUTION_HOURLY);
+            combineStmt.setLong(4, periodStart);
+            combineStmt.setLong(5, periodStart + resolution);
+            combineStmt.executeUpdate();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    /*
+     * Finds the status each check ended with in its latest hourly rollup so
+     * transitions across the hour boundary are counted
+     */
+    private Map<Integer,Integer> loadLastStatus(long since, Connection conn) throws SQLException{
+        Map<Integer,Integer> lastStatus = new HashMap<Integer,Integer>();
+        PreparedStatement selStmt = conn.prepareStatement("SELECT checkId, lastStatus FROM " +
+                "resultRollups WHERE resolution=? AND periodStart >= ? ORDER BY periodStart");
+        selStmt.setInt(1, RESOLUTION_HOURLY);
+        selStmt.setLong(2, since);
+        ResultSet results = selStmt.executeQuery();
+        while(results.next()){
+            lastStatus.put(results.getInt(1), results.getInt(2));
+        }
+        selStmt.close();
+        return lastStatus;
+    }
+
+    private long nextPeriod(int resolution, Connection conn) throws SQLException{
+        PreparedStatement selStmt = conn.prepareStatement("SELECT MAX(periodStart) FROM resultRollups WHERE resolution=?");
+        selStmt.setInt(1, resolution);
+        ResultSet result = selStmt.executeQuery();
+        long next = 0;
+        if(result.next() && result.getLong(1) > 0){
+            next = result.getLong(1) + resolution;
+        }
+        selStmt.close();
+        return next;
+    }
+
+    private long firstPeriod(int resolution, Connection conn) throws SQLException{
+        PreparedStatement selStmt = conn.prepareStatement("SELECT MIN(periodStart) FROM resultRollups WHERE resolution=?");
+        selStmt.setInt(1, resolution);
+        ResultSet result = selStmt.executeQuery();
+        long first = 0;
+        if(result.next()){
+            first = result.getLong(1);
+        }
+        selStmt.close();
+        return first;
+    }
+
+    static private int countIndex(int status){
+        if(status >= CheckConstants.RESULT_SUCCESS && status <= CheckConstants.RESULT_UNKNOWN){
+            return status;
+        }
+        return 4;
+    }
+
+    /*
+     * Checks return numbers both as JSON numbers and strings
+     */
+    static private Double numericValue(JsonValue value){
+        if(value.getValueType() == JsonValue.ValueType.NUMBER){
+            return ((JsonNumber) value).doubleValue();
+        }else if(value.getValueType() == JsonValue.ValueType.STRING){
+            try{
+                double parsed = Double.parseDouble(((JsonString) value).getString().trim());
+                if(!Double.isNaN(parsed) && !Double.isInfinite(parsed)){
+                    return parsed;
+                }
+            }catch(NumberFormatException e){}
+        }
+        return null;
+    }
+}
@@ -2,11 +2,8 @@ package net.es.maddash.jobs;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.Map;
 
 import net.es.maddash.MaDDashGlobals;
 import net.es.maddash.NetLogger;
@@ -17,22 +14,36 @@ import net.es.maddash.checks.TemplateVariableMap;
 import net.sf.json.JSONObject;
 
 import org.apache.log4j.Logger;
-import org.quartz.Job;
-import org.quartz.JobDataMap;
-import org.quartz.JobExecutionContext;
-import org.quartz.JobExecutionException;
 
 /**
- * Job that runs a specified check and adds the results to the database
+ * Job that runs a specified check and hands the result to the ResultWriter. 
+ * Run by the check executor of the CheckSchedulerJob.
  * 
  * @author Andy Lake<andy@es.net>
  *
  */
-public class RunCheckJob implements Job{
+public class RunCheckJob implements Runnable{
     private Logger log = Logger.getLogger(CheckSchedulerJob.class);
     private Logger netlogger = Logger.getLogger("netlogger");
+    private CheckTask task;
+    private String checkType;
+    private CheckSchedulerJob checkScheduler;
     
-    public void execute(JobExecutionContext context) throws JobExecutionException {
+    /**
+     * Creates a job that will run the given check
+     * 
+     * @param task the check to run
+     * @param checkType the type of the check
+     * @param checkScheduler the scheduler to tell when the check stops running if its type 
+     *      has a concurrency limit. May be null.
+     */
+    public RunCheckJob(CheckTask task, String checkType, CheckSchedulerJob checkScheduler){
+        this.task = task;
+        this.checkType = checkType;
+        this.checkScheduler = checkScheduler;
+    }
+    
+    public void run() {
         NetLogger netLog = NetLogger.getTlogger();
         netlogger.debug(netLog.start("maddash.RunCheckJob.execute"));
         //load jobdatamap
@@ -43,24 +54,17 @@ public class RunCheckJob implements Job{
             log.error("Error loading global: " + e.getMessage());
             e.printStackTrace();
         }
-        JobDataMap dataMap = context.getJobDetail().getJobDataMap();
-        int checkId = dataMap.getInt("checkId");
-        String gridName = dataMap.getString("gridName");
-        String rowName = dataMap.getString("rowName");
-        String colName = dataMap.getString("colName");
-        Class checkClass = (Class) dataMap.get("checkType");
-        String checkParams = dataMap.getString("checkParams");
-        Map<String,String> rowVarsUnsorted = (Map<String,String>)dataMap.get("rowVars");
-        Map<String,String> colVarsUnsorted = (Map<String,String>)dataMap.get("colVars");
+        int checkId = this.task.getCheckId();
+        String gridName = this.task.getGridName();
+        String rowName = this.task.getRowName();
+        String colName = this.task.getColName();
+        Class checkClass = this.task.getCheckClass();
+        String checkParams = this.task.getCheckParams();
         TemplateVariableMap rowVars = new TemplateVariableMap();
-        if(rowVarsUnsorted != null){
-            rowVars.putAll(rowVarsUnsorted);
-        }
+        rowVars.putAll(this.task.getRowVars());
         TemplateVariableMap colVars = new TemplateVariableMap();
-        if(colVarsUnsorted != null){
-            colVars.putAll(colVarsUnsorted);
-        }
-        int timeout = dataMap.getInt("timeout");
+        colVars.putAll(this.task.getColVars());
+        int timeout = this.task.getTimeout();
         
         //load check
         JSONObject paramJson = null;
@@ -71,7 +75,8 @@ public class RunCheckJob implements Job{
             }
             checkToRun = (Check)checkClass.newInstance();
         } catch (Exception e) {
-            this.deactivateCheck(checkId, globals);
+            this.deactivateCheck(checkId, gridName, globals);
+            this.checkTypeFinished();
             log.error("Error loading check: " + e.getMessage());
             e.printStackTrace();
             return;
@@ -97,112 +102,23 @@ public class RunCheckJob implements Job{
             netlogger.error(netLog.end("maddash.RunCheckJob.execute.runCheck", e.getMessage(), null, netLogFields));
             log.error("Error running check: " + e.getMessage());
             e.printStackTrace();
+        }finally{
+            this.checkTypeFinished();
         }
         
-        Connection conn = null;
-        try {
-            netlogger.debug(netLog.start("maddash.RunCheckJob.execute.updateDatabase"));
-            conn = globals.getDataSource().getConnection();
-            this.updateDatabase(result, dataMap, conn);
-            conn.close();   
-            netlogger.debug(netLog.end("maddash.RunCheckJob.execute.updateDatabase"));
-        } catch (Exception e) {
-            if(conn != null){
-                try {
-                    conn.close();
-                } catch (SQLException e1) {}
-            }
-            netlogger.debug(netLog.error("maddash.RunCheckJob.execute.updateDatabase", e.getMessage()));
-            e.printStackTrace();
-        }
+        //result is saved and the next run is queued once the writer commits it
+        globals.getResultWriter().add(this.task, result);
         
-        //unschedule check
-        globals.updateScheduledChecks(checkId, false);
         netlogger.debug(netLog.end("maddash.RunCheckJob.execute"));
     }
 
-    public void updateDatabase(CheckResult result, JobDataMap dataMap, Connection conn) throws SQLException{
-        NetLogger netLog = NetLogger.getTlogger();
-        int checkId = dataMap.getInt("checkId");
-        String gridName = dataMap.getString("gridName");
-        String rowName = dataMap.getString("rowName");
-        String colName = dataMap.getString("colName");
-        int checkInterval = dataMap.getInt("checkInterval");
-        int retryInterval = dataMap.getInt("retryInterval");
-        int retryAttempts = dataMap.getInt("retryAttempts");
-        String lastCheckMessage = dataMap.getString("statusMessage");
-        
-        //find last result
-        int lastReturnCode = result.getResultCode();
-        int lastResultCount = 0;
-        int lastCheckStatus = result.getResultCode();
-        
-        netlogger.debug(netLog.start("maddash.RunCheckJob.execute.updateDatabase.select"));
-        PreparedStatement selStmt = conn.prepareStatement("SELECT returnCode, resultCount, checkStatus FROM results WHERE checkId=? AND " +
-                "checkTime=(SELECT MAX(checkTime) FROM results WHERE checkId=?)");
-        selStmt.setInt(1, checkId);
-        selStmt.setInt(2, checkId);
-        ResultSet lastCheck = selStmt.executeQuery();
-        netlogger.debug(netLog.end("maddash.RunCheckJob.execute.updateDatabase.select"));
-        
-        if(lastCheck.next()){
-            lastReturnCode = lastCheck.getInt(1);
-            lastResultCount = lastCheck.getInt(2);
-            lastCheckStatus = lastCheck.getInt(3);
-        }
-        
-        //determine next time and final status
-        long time = (System.currentTimeMillis()/1000);
-        long nextTime = time + checkInterval;
-        int newResultCount = 0;
-        int finalStatus = result.getResultCode();
-        String finalStatusMessage = result.getMessage();
-        if(result.getResultCode() != lastCheckStatus){
-            newResultCount = 1;
-            if(lastReturnCode != lastCheckStatus){
-                newResultCount += lastResultCount;
-            }
-            if(newResultCount < retryAttempts){
-                finalStatus = lastCheckStatus;
-                finalStatusMessage = lastCheckMessage;
-                nextTime = time + retryInterval;
-            }
+    private void checkTypeFinished(){
+        if(this.checkScheduler != null){
+            this.checkScheduler.checkTypeFinished(this.checkType);
         }
-        
-        //insert and update database
-        String statsString = null;
-        if(result.getStats() != null){
-            JSONObject tmpJson = JSONObject.fromObject(result.getStats());
-            statsString = tmpJson.toString();
-        }
-        
-        netlogger.debug(netLog.start("maddash.RunCheckJob.execute.updateDatabase.insert"));
-        PreparedStatement insertResStmt = conn.prepareStatement("INSERT INTO results VALUES(DEFAULT, ?, ?, ?, ?, ?, ?, ?)");
-        insertResStmt.setInt(1, checkId);
-        insertResStmt.setLong(2, time);
-        insertResStmt.setInt(3, result.getResultCode());
-        insertResStmt.setString(4, result.getMessage());
-        insertResStmt.setString(5, statsString);
-        insertResStmt.setInt(6, newResultCount);
-        insertResStmt.setInt(7, finalStatus);
-        insertResStmt.executeUpdate();
-        netlogger.debug(netLog.end("maddash.RunCheckJob.execute.updateDatabase.insert"));
-        
-        netlogger.debug(netLog.start("maddash.RunCheckJob.execute.updateDatabase.update"));
-        PreparedStatement updateCheckStmt = conn.prepareStatement("UPDATE checks SET prevCheckTime=?, nextCheckTime=?, checkStatus=?, prevResultCode=?, statusMessage=?, resultCount=? WHERE id=?");
-        updateCheckStmt.setLong(1, time);
-        updateCheckStmt.setLong(2, nextTime);
-        updateCheckStmt.setInt(3, finalStatus);
-        updateCheckStmt.setInt(4, result.getResultCode());
-        updateCheckStmt.setString(5, finalStatusMessage);
-        updateCheckStmt.setInt(6, newResultCount);
-        updateCheckStmt.setInt(7, checkId);
-        updateCheckStmt.executeUpdate();
-        netlogger.debug(netLog.end("maddash.RunCheckJob.execute.updateDatabase.update"));
-        log.debug("Next run of " + gridName + "." + rowName + "." + colName  + " is " + new Date(nextTime*1000));
     }
-    
-    private void deactivateCheck(int checkId, MaDDashGlobals globals) {
+
+    private void deactivateCheck(int checkId, String gridName, MaDDashGlobals globals) {
         Connection conn = null;
         try {
             conn = globals.getDataSource().getConnection();
@@ -210,6 +126,8 @@ public class RunCheckJob implements Job{
             updateCheckStmt.setInt(1, checkId);
             updateCheckStmt.executeUpdate();
             conn.close();
+            //inactive checks are not displayed so grid needs to be reloaded
+            globals.getGridCache().invalidate(gridName);
         } catch (Exception e) {
             if(conn != null){
                 try {
@@ -218,6 +136,9 @@ public class RunCheckJob implements Job{
             }
             e.printStackTrace();
         }
-        globals.updateScheduledChecks(checkId, false);
+        CheckSchedulerJob checkScheduler = globals.getCheckScheduler();
+        if(checkScheduler != null){
+            checkScheduler.checkDeactivated(checkId);
+        }
     }
 }
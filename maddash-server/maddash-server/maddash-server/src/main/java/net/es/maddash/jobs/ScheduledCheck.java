@@ -0,0 +1,41 @@
+package net.es.maddash.jobs;
+
+/**
+ * A check tracked by the CheckSchedulerJob. Holds everything needed to run the
+ * check along with when it should next run. Ordered by next check time so it
+ * can be kept in a priority queue.
+ */
+class ScheduledCheck implements Comparable<ScheduledCheck>{
+    int id;
+    String gridName;
+    String rowName;
+    String colName;
+    String checkName;
+    String checkType;
+    String checkParams;
+    int checkInterval;
+    int retryInterval;
+    int retryAttempts;
+    int timeout;
+    String statusMessage;
+    //state used to decide when a new result changes the status
+    int checkStatus;
+    int prevResultCode;
+    int resultCount;
+    long nextCheckTime;
+    //true while check is handed off to run
+    boolean running;
+    //true while check is down for a maintenance event
+    boolean maintenance;
+    //true if check came due while down for maintenance and is waiting for it to end
+    boolean held;
+    //true if check came due while its type was at its limit and is waiting for a check of that type to finish
+    boolean blocked;
+
+    public int compareTo(ScheduledCheck other) {
+        if(this.nextCheckTime != other.nextCheckTime){
+            return (this.nextCheckTime < other.nextCheckTime ? -1 : 1);
+        }
+        return (this.id < other.id ? -1 : (this.id == other.id ? 0 : 1));
+    }
+}
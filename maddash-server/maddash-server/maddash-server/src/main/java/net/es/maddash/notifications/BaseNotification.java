@@ -6,9 +6,6 @@ import net.es.maddash.NetLogger;
 import org.apache.log4j.Logger;
 
 import javax.json.JsonObject;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 
@@ -34,34 +31,9 @@ public abstract class BaseNotification implements Notification{
         netLogParams.put("notificationId", notificationId + "");
         netLogParams.put("problemChecksum", p.checksum());
         netlogger.info(netLog.start("maddash.BaseNotification.updateAppData", null, null, netLogParams));
-        //query database
-        Connection conn = null;
-        try {
-            //init db and find notification row
-            MaDDashGlobals globals = MaDDashGlobals.getInstance();
-            conn = globals.getDataSource().getConnection();
-            PreparedStatement stmt = conn.prepareStatement("UPDATE notificationProblems SET appData =? WHERE notificationId=? AND checksum=?");
-            stmt.setString(1, appData);
-            stmt.setInt(2, notificationId);
-            stmt.setString(3, p.checksum());
-            stmt.executeUpdate();
-            netlogger.info(netLog.end("maddash.BaseNotification.updateAppData", null, null, netLogParams));
-        }catch(Exception e){
-            if(conn != null){
-                try{
-                    conn.close();
-                }catch(SQLException e2){}
-            }
-            netlogger.info(netLog.error("maddash.BaseNotification.updateAppData", e.getMessage()));
-            log.error("Error updating notification appdata " + e.getMessage());
-            e.printStackTrace();
-        }finally {
-            if(conn != null){
-                try{
-                    conn.close();
-                }catch(SQLException e2){}
-            }
-        }
+        //saved to the database with the rest of the notification's changes
+        MaDDashGlobals.getInstance().getNotificationProblemStore().setAppData(notificationId, p.checksum(), appData);
+        netlogger.info(netLog.end("maddash.BaseNotification.updateAppData", null, null, netLogParams));
     }
 
 }
@@ -0,0 +1,162 @@
+package net.es.maddash.notifications;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.es.maddash.GridCache;
+import net.es.maddash.madalert.Problem;
+import net.es.maddash.madalert.Report;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the problems each notification should report on. The report of each grid
+ * is turned into a list of problems once and shared by every notification, which
+ * then only has to apply its own filters. A grid is only evaluated again when its
+ * report changes, so the cost of notifications grows with the number of grids
+ * rather than the number of grids times the number of notifications.
+ */
+public class NotificationEngine {
+    private Logger log = Logger.getLogger(NotificationEngine.class);
+    private GridCache gridCache;
+    private ConcurrentHashMap<String, GridProblems> gridProblemsMap;
+    private volatile List<String> gridNames;
+
+    /**
+     * Creates a new engine
+     *
+     * @param gridCache the cache that keeps the report of each grid
+     */
+    public NotificationEngine(GridCache gridCache){
+        this.gridCache = gridCache;
+        this.gridProblemsMap = new ConcurrentHashMap<String, GridProblems>();
+        this.gridNames = null;
+    }
+
+    /**
+     * Returns the names of all grids, reading them from the database the first
+     * time they are needed after the configuration is loaded
+     *
+     * @param conn a connection to the database
+     * @return the names of all grids
+     * @throws SQLException
+     */
+    public List<String> getGridNames(Connection conn) throws SQLException{
+        List<String> gridNames = this.gridNames;
+        if(gridNames == null){
+            ArrayList<String> loadedNames = new ArrayList<String>();
+            ResultSet gridSel = conn.createStatement().executeQuery("SELECT DISTINCT gridName FROM grids");
+            while(gridSel.next()){
+                loadedNames.add(gridSel.getString(1));
+            }
+            gridSel.close();
+            gridNames = Collections.unmodifiableList(loadedNames);
+            this.gridNames = gridNames;
+        }
+        return gridNames;
+    }
+
+    /**
+     * Returns the problems in the given grids that pass a notification's filters
+     *
+     * @param gridNames the grids the notification covers
+     * @param minSeverity the lowest severity to include
+     * @param siteFilters if not empty only problems for these sites are included and global problems are not
+     * @param categoryFilters if not empty only problems in these categories are included
+     * @return the matching problems
+     */
+    public List<NotifyProblem> findProblems(Collection<String> gridNames, int minSeverity,
+            Map<String, Boolean> siteFilters, Map<String, Boolean> categoryFilters){
+        List<NotifyProblem> problems = new ArrayList<NotifyProblem>();
+        for(String gridName : gridNames){
+            GridProblems gridProblems = this.getGridProblems(gridName);
+            //check global problem. if site filters, ignore global
+            if(siteFilters.isEmpty()){
+                this.addMatching(gridProblems.globalProblems, minSeverity, categoryFilters, problems);
+            }
+
+            //check site problems
+            for(Map.Entry<String, List<NotifyProblem>> siteProblems : gridProblems.siteProblems.entrySet()){
+                //skip if site filters defined and this is not our site
+                if(!siteFilters.isEmpty() && !Boolean.TRUE.equals(siteFilters.get(siteProblems.getKey()))){
+                    continue;
+                }
+                this.addMatching(siteProblems.getValue(), minSeverity, categoryFilters, problems);
+            }
+        }
+
+        return problems;
+    }
+
+    /**
+     * Forgets all grids and their problems. Called when the configuration is reloaded.
+     */
+    public void clear(){
+        this.gridProblemsMap.clear();
+        this.gridNames = null;
+    }
+
+    private GridProblems getGridProblems(String gridName){
+        Report report = this.gridCache.getMesh(gridName).getRuleReport();
+        GridProblems gridProblems = this.gridProblemsMap.get(gridName);
+        if(gridProblems == null || gridProblems.report != report){
+            log.debug("Evaluating problems for grid " + gridName);
+            gridProblems = new GridProblems(gridName, report);
+            this.gridProblemsMap.put(gridName, gridProblems);
+        }
+        return gridProblems;
+    }
+
+    private void addMatching(List<NotifyProblem> candidates, int minSeverity,
+            Map<String, Boolean> categoryFilters, List<NotifyProblem> problems){
+        for(NotifyProblem p : candidates){
+            String category = p.getProblem().getCategory();
+            if(!categoryFilters.isEmpty() && (!categoryFilters.containsKey(category) || categoryFilters.get(category) == null)){
+                continue;
+            }
+            if(p.getProblem().getSeverity() >= minSeverity){
+                problems.add(p);
+            }
+        }
+    }
+
+    /*
+     * The problems in one report of a grid. Never changed once built so
+     * notifications running at the same time can share it.
+     */
+    private static class GridProblems {
+        Report report;
+        List<NotifyProblem> globalProblems;
+        Map<String, List<NotifyProblem>> siteProblems;
+
+        GridProblems(String gridName, Report report){
+            this.report = report;
+            ArrayList<NotifyProblem> globalProblems = new ArrayList<NotifyProblem>();
+            if(report.getGlobalProblems() != null){
+                for(Problem p : report.getGlobalProblems()){
+                    globalProblems.add(new NotifyProblem(gridName, p));
+                }
+            }
+            this.globalProblems = Collections.unmodifiableList(globalProblems);
+            LinkedHashMap<String, List<NotifyProblem>> siteProblems = new LinkedHashMap<String, List<NotifyProblem>>();
+            for(String site : report.getSites()){
+                ArrayList<NotifyProblem> problems = new ArrayList<NotifyProblem>();
+                if(report.getSiteProblems(site) != null){
+                    for(Problem p : report.getSiteProblems(site)){
+                        problems.add(new NotifyProblem(gridName, site, p));
+                    }
+                }
+                siteProblems.put(site, Collections.unmodifiableList(problems));
+            }
+            this.siteProblems = Collections.unmodifiableMap(siteProblems);
+        }
+    }
+}
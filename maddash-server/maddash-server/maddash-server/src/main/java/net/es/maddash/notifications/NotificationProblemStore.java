@@ -0,0 +1,393 @@
+package net.es.maddash.notifications;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import net.es.maddash.NetLogger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers which problems each notification has already reported so they are
+ * not sent again until they expire, and when each was last seen so resolved
+ * problems can be found. The state is read from the notificationProblems table
+ * the first time it is needed and then kept in memory, so a notification run
+ * does not query the database for each problem. Changes are written back in
+ * batches inside one transaction when {@link #flush()} is called. The last seen
+ * time of a problem that is still being seen is only written once it has moved
+ * by half the resolve time, so a server restart can make a problem that was
+ * resolved around that time be reported as resolved up to that much early.
+ */
+public class NotificationProblemStore {
+    private Logger log = Logger.getLogger(NotificationProblemStore.class);
+    private Logger netlogger = Logger.getLogger("netlogger");
+    private DataSource dataSource;
+    //notificationId -> checksum -> state
+    private volatile ConcurrentHashMap<Integer, Map<String, ProblemState>> problemMap;
+    //keys changed since the last flush, the state is read from problemMap when written
+    private ConcurrentHashMap<ProblemKey, Boolean> dirtyKeys;
+
+    //lastSeen of rows from before it was tracked. Such rows are never resolved.
+    final static private long LAST_SEEN_UNKNOWN = -1;
+
+    /**
+     * Creates a new store
+     *
+     * @param dataSource the database the state is saved in
+     */
+    public NotificationProblemStore(DataSource dataSource){
+        this.dataSource = dataSource;
+        this.problemMap = null;
+        this.dirtyKeys = new ConcurrentHashMap<ProblemKey, Boolean>();
+    }
+
+    /**
+     * Records that the given problems were seen and returns the ones that need to
+     * be sent because they are new or were last sent long enough ago
+     *
+     * @param notificationId the id of the notification
+     * @param problems the problems seen in this run of the notification
+     * @param now the time of this run in seconds
+     * @param frequency the number of seconds before a problem is sent again. If 0 or less
+     *      problems are not remembered so are sent every time they are seen.
+     * @param resolveAfter the number of seconds a problem must go unseen to be resolved. If 0
+     *      or less problems are not resolved so when they were last seen is not saved.
+     * @return the problems that should be sent
+     */
+    public List<NotifyProblem> update(int notificationId, List<NotifyProblem> problems, long now,
+            int frequency, int resolveAfter){
+        List<NotifyProblem> newProblems = new ArrayList<NotifyProblem>();
+        long expires = now + frequency;
+        Map<String, ProblemState> states = this.getStates(notificationId);
+        synchronized(states){
+            for(NotifyProblem p : problems){
+                String checksum = p.checksum();
+                ProblemState state = states.get(checksum);
+                if(state == null){
+                    //create a new problem
+                    if(frequency > 0){
+                        state = new ProblemState(expires, now);
+                        states.put(checksum, state);
+                        this.save(notificationId, checksum, state);
+                    }
+                    newProblems.add(p);
+                }else if(state.expires <= now){
+                    //need a new notification
+                    state.expires = expires;
+                    state.lastSeen = now;
+                    this.save(notificationId, checksum, state);
+                    newProblems.add(p);
+                }else{
+                    //no notification needed, but update last seen. only save it once it has moved enough to matter.
+                    state.lastSeen = now;
+                    if(resolveAfter > 0 && (state.savedLastSeen == LAST_SEEN_UNKNOWN ||
+                            now - state.savedLastSeen >= Math.max(1, resolveAfter / 2))){
+                        this.save(notificationId, checksum, state);
+                    }
+                }
+            }
+        }
+
+        return newProblems;
+    }
+
+    /**
+     * Forgets problems that have not been seen since the given time. This means
+     * there is only one chance to report them as resolved.
+     *
+     * @param notificationId the id of the notification
+     * @param resolvedBefore problems last seen at or before this time in seconds are removed
+     * @return the application data of each problem removed
+     */
+    public List<String> removeResolved(int notificationId, long resolvedBefore){
+        List<String> resolvedAppData = new ArrayList<String>();
+        Map<String, ProblemState> states = this.getStates(notificationId);
+        synchronized(states){
+            Iterator<Map.Entry<String, ProblemState>> iter = states.entrySet().iterator();
+            while(iter.hasNext()){
+                Map.Entry<String, ProblemState> state = iter.next();
+                if(state.getValue().lastSeen != LAST_SEEN_UNKNOWN && state.getValue().lastSeen <= resolvedBefore){
+                    resolvedAppData.add(state.getValue().appData);
+                    iter.remove();
+                    this.markDirty(notificationId, state.getKey());
+                }
+            }
+        }
+
+        return resolvedAppData;
+    }
+
+    /**
+     * Forgets problems that have expired
+     *
+     * @param notificationId the id of the notification
+     * @param now problems that expire at or before this time in seconds are removed
+     */
+    public void removeExpired(int notificationId, long now){
+        Map<String, ProblemState> states = this.getStates(notificationId);
+        synchronized(states){
+            Iterator<Map.Entry<String, ProblemState>> iter = states.entrySet().iterator();
+            while(iter.hasNext()){
+                Map.Entry<String, ProblemState> state = iter.next();
+                if(state.getValue().expires <= now){
+                    iter.remove();
+                    this.markDirty(notificationId, state.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets data a notification keeps about a problem, such as the id of a ticket
+     * opened for it. Does nothing if the problem is not remembered.
+     *
+     * @param notificationId the id of the notification
+     * @param checksum the checksum of the problem
+     * @param appData the data to keep
+     */
+    public void setAppData(int notificationId, String checksum, String appData){
+        Map<String, ProblemState> states = this.getStates(notificationId);
+        synchronized(states){
+            ProblemState state = states.get(checksum);
+            if(state != null){
+                state.appData = appData;
+                this.save(notificationId, checksum, state);
+            }
+        }
+    }
+
+    /**
+     * Writes every change since the last flush to the database in one transaction.
+     * If the write fails the changes are kept and written by the next flush.
+     */
+    synchronized public void flush(){
+        if(this.dirtyKeys.isEmpty()){
+            return;
+        }
+        NetLogger netLog = NetLogger.getTlogger();
+        HashMap<String,String> netLogParams = new HashMap<String,String>();
+        List<ProblemKey> keys = new ArrayList<ProblemKey>(this.dirtyKeys.keySet());
+        for(ProblemKey key : keys){
+            this.dirtyKeys.remove(key);
+        }
+        netLogParams.put("count", keys.size() + "");
+        netlogger.debug(netLog.start("maddash.NotificationProblemStore.flush", null, null, netLogParams));
+        Connection conn = null;
+        try{
+            conn = this.dataSource.getConnection();
+            conn.setAutoCommit(false);
+            PreparedStatement updateStmt = conn.prepareStatement("UPDATE notificationProblems SET expires=?, lastSeen=?, appData=? WHERE notificationId=? AND checksum=?");
+            PreparedStatement deleteStmt = conn.prepareStatement("DELETE FROM notificationProblems WHERE notificationId=? AND checksum=?");
+            List<ProblemKey> updatedKeys = new ArrayList<ProblemKey>();
+            List<ProblemState> updatedStates = new ArrayList<ProblemState>();
+            for(ProblemKey key : keys){
+                ProblemState state = this.copyState(key);
+                if(state == null){
+                    deleteStmt.setInt(1, key.notificationId);
+                    deleteStmt.setString(2, key.checksum);
+                    deleteStmt.addBatch();
+                }else{
+                    updateStmt.setLong(1, state.expires);
+                    this.setLastSeen(updateStmt, 2, state.lastSeen);
+                    updateStmt.setString(3, state.appData);
+                    updateStmt.setInt(4, key.notificationId);
+                    updateStmt.setString(5, key.checksum);
+                    updateStmt.addBatch();
+                    updatedKeys.add(key);
+                    updatedStates.add(state);
+                }
+            }
+            deleteStmt.executeBatch();
+            int[] updateCounts = updateStmt.executeBatch();
+
+            //insert problems that were not already in the table
+            PreparedStatement insertStmt = conn.prepareStatement("INSERT INTO notificationProblems VALUES(DEFAULT, ?, ?, ?, ?, ?)");
+            int inserted = 0;
+            for(int i = 0; i < updatedKeys.size(); i++){
+                if(updateCounts[i] != 0){
+                    continue;
+                }
+                insertStmt.setInt(1, updatedKeys.get(i).notificationId);
+                insertStmt.setString(2, updatedKeys.get(i).checksum);
+                insertStmt.setLong(3, updatedStates.get(i).expires);
+                this.setLastSeen(insertStmt, 4, updatedStates.get(i).lastSeen);
+                insertStmt.setString(5, updatedStates.get(i).appData);
+                insertStmt.addBatch();
+                inserted++;
+            }
+            if(inserted > 0){
+                insertStmt.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+            conn.close();
+            netLogParams.put("inserted", inserted + "");
+            netlogger.debug(netLog.end("maddash.NotificationProblemStore.flush", null, null, netLogParams));
+        }catch(Exception e){
+            if(conn != null){
+                try {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                } catch (SQLException e1) {}
+                try {
+                    conn.close();
+                } catch (SQLException e1) {}
+            }
+            //try again next time
+            for(ProblemKey key : keys){
+                this.dirtyKeys.put(key, true);
+            }
+            netlogger.error(netLog.error("maddash.NotificationProblemStore.flush", e.getMessage(), null, netLogParams));
+            log.error("Unable to save notification problems: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes any changes and forgets the state kept in memory so it is read from
+     * the database again when next needed. Called when the configuration is
+     * reloaded since notifications may have been removed.
+     */
+    synchronized public void clear(){
+        this.flush();
+        this.problemMap = null;
+    }
+
+    private Map<String, ProblemState> getStates(int notificationId){
+        ConcurrentHashMap<Integer, Map<String, ProblemState>> problemMap = this.load();
+        Map<String, ProblemState> states = problemMap.get(notificationId);
+        if(states == null){
+            problemMap.putIfAbsent(notificationId, new HashMap<String, ProblemState>());
+            states = problemMap.get(notificationId);
+        }
+        return states;
+    }
+
+    private ProblemState copyState(ProblemKey key){
+        Map<String, ProblemState> states = this.getStates(key.notificationId);
+        synchronized(states){
+            ProblemState state = states.get(key.checksum);
+            if(state == null){
+                return null;
+            }
+            ProblemState copy = new ProblemState(state.expires, state.lastSeen);
+            copy.appData = state.appData;
+            return copy;
+        }
+    }
+
+    private void markDirty(int notificationId, String checksum){
+        this.dirtyKeys.put(new ProblemKey(notificationId, checksum), true);
+    }
+
+    private void save(int notificationId, String checksum, ProblemState state){
+        state.savedLastSeen = state.lastSeen;
+        this.markDirty(notificationId, checksum);
+    }
+
+    private void setLastSeen(PreparedStatement stmt, int index, long lastSeen) throws SQLException{
+        if(lastSeen == LAST_SEEN_UNKNOWN){
+            stmt.setNull(index, Types.BIGINT);
+        }else{
+            stmt.setLong(index, lastSeen);
+        }
+    }
+
+    synchronized private ConcurrentHashMap<Integer, Map<String, ProblemState>> load(){
+        if(this.problemMap != null){
+            return this.problemMap;
+        }
+        NetLogger netLog = NetLogger.getTlogger();
+        netlogger.info(netLog.start("maddash.NotificationProblemStore.load"));
+        ConcurrentHashMap<Integer, Map<String, ProblemState>> problemMap = new ConcurrentHashMap<Integer, Map<String, ProblemState>>();
+        Connection conn = null;
+        try{
+            conn = this.dataSource.getConnection();
+            PreparedStatement selStmt = conn.prepareStatement("SELECT notificationId, checksum, expires, lastSeen, appData FROM notificationProblems");
+            ResultSet result = selStmt.executeQuery();
+            int count = 0;
+            while(result.next()){
+                Map<String, ProblemState> states = problemMap.get(result.getInt(1));
+                if(states == null){
+                    states = new HashMap<String, ProblemState>();
+                    problemMap.put(result.getInt(1), states);
+                }
+                ProblemState state = new ProblemState(result.getLong(3), result.getLong(4));
+                //rows from before lastSeen was tracked are kept until they expire or are seen again
+                if(result.wasNull()){
+                    state.lastSeen = LAST_SEEN_UNKNOWN;
+                    state.savedLastSeen = LAST_SEEN_UNKNOWN;
+                }
+                state.appData = result.getString(5);
+                states.put(result.getString(2), state);
+                count++;
+            }
+            selStmt.close();
+            conn.close();
+            log.debug("Loaded " + count + " notification problems");
+        }catch(SQLException e){
+            if(conn != null){
+                try{
+                    conn.close();
+                }catch(SQLException e2){}
+            }
+            netlogger.error(netLog.error("maddash.NotificationProblemStore.load", e.getMessage()));
+            log.error("Unable to load notification problems: " + e.getMessage());
+            throw new RuntimeException(e.getMessage());
+        }
+        netlogger.info(netLog.end("maddash.NotificationProblemStore.load"));
+        this.problemMap = problemMap;
+
+        return problemMap;
+    }
+
+    private static class ProblemState {
+        long expires;
+        long lastSeen;
+        //the lastSeen most recently queued to be written to the database
+        long savedLastSeen;
+        String appData;
+
+        ProblemState(long expires, long lastSeen){
+            this.expires = expires;
+            this.lastSeen = lastSeen;
+            this.savedLastSeen = lastSeen;
+            this.appData = null;
+        }
+    }
+
+    private static class ProblemKey {
+        int notificationId;
+        String checksum;
+
+        ProblemKey(int notificationId, String checksum){
+            this.notificationId = notificationId;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof ProblemKey)){
+                return false;
+            }
+            ProblemKey other = (ProblemKey) o;
+            return this.notificationId == other.notificationId && this.checksum.equals(other.checksum);
+        }
+
+        @Override
+        public int hashCode(){
+            return 31 * this.notificationId + this.checksum.hashCode();
+        }
+    }
+}
@@ -11,6 +11,8 @@ public class NotifyProblem {
     protected String siteName;
     protected Problem problem;
     protected boolean isGlobal;
+    //problems are shared between notifications so only calculate this once
+    private String checksum;
     
     public NotifyProblem(String gridName, String siteName, Problem problem){
         this.gridName = gridName;
@@ -32,6 +34,7 @@ public class NotifyProblem {
 
     public void setGridName(String gridName) {
         this.gridName = gridName;
+        this.checksum = null;
     }
 
     public String getSiteName() {
@@ -40,6 +43,7 @@ public class NotifyProblem {
 
     public void setSiteName(String siteName) {
         this.siteName = siteName;
+        this.checksum = null;
     }
 
     public Problem getProblem() {
@@ -48,6 +52,7 @@ public class NotifyProblem {
 
     public void setProblem(Problem problem) {
         this.problem = problem;
+        this.checksum = null;
     }
 
     public boolean isGlobal() {
@@ -59,6 +64,9 @@ public class NotifyProblem {
     }
     
     public String checksum(){
+        if(this.checksum != null){
+            return this.checksum;
+        }
         String str = this.gridName + "::";
         if(this.siteName != null){
             str += this.siteName + "::";
@@ -79,6 +87,7 @@ public class NotifyProblem {
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Unable to calculate md5 checksum because your java does not seem to support it");
         }
+        this.checksum = checksum;
         
         return checksum;
     }
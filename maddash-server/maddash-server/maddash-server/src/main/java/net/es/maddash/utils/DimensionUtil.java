@@ -1,9 +1,5 @@
 package net.es.maddash.utils;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,39 +8,10 @@ import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
 
-import net.es.maddash.ConfigLoader;
-import net.es.maddash.jobs.CheckSchedulerJob;
+import net.es.maddash.DimensionIndex;
 import net.sf.json.JSONObject;
 
-import org.apache.log4j.Logger;
-
 public class DimensionUtil {
-    static Logger log = Logger.getLogger(CheckSchedulerJob.class);
-
-    static public Map<String,String> getParams(String configIdent, String otherConfigIdent, Connection conn){
-        HashMap<String,String> params = new HashMap<String,String>();
-        try{
-            PreparedStatement stmt = conn.prepareStatement("SELECT keyName, value FROM dimensions WHERE configIdent=?");
-            stmt.setString(1, configIdent);
-            ResultSet results = stmt.executeQuery();
-            while(results.next()){
-                if(results.getString(1).equals(ConfigLoader.PROP_DIMENSION_MAP)){
-                    //handle mapped properties
-                    JSONObject paramMap = JSONObject.fromObject(results.getString(2));
-                    JSONObject mapProps = getJsonProp(paramMap, otherConfigIdent);
-                    for(Object propName : mapProps.keySet()){
-                        params.put("map." + propName, mapProps.getString(propName+""));
-                    }
-                }else{
-                    params.put(results.getString(1), results.getString(2));
-                }
-            }
-        }catch(Exception e){
-            log.warn("Unable to get hos parameters for " + configIdent);
-        }
-        return params;
-    }
-
     static public JSONObject getJsonProp(JSONObject jsonMap, String key){
         JSONObject props;
 
@@ -59,7 +26,7 @@ public class DimensionUtil {
         return props;
     }
     
-    static public String translateName(String name, HashMap<String,String> labelMap){
+    static public String translateName(String name, Map<String,String> labelMap){
         String label = name;
         if(labelMap.containsKey(name) && labelMap.get(name) != null){
             label = labelMap.get(name);
@@ -68,7 +35,7 @@ public class DimensionUtil {
         return label;
     }
     
-    static public JsonArray translateNames(List<String> names, HashMap<String,String> labelMap){
+    static public JsonArray translateNames(List<String> names, Map<String,String> labelMap){
         JsonArrayBuilder translatedNames = Json.createArrayBuilder();
         //translate column to label if possible
         for(String name : names){
@@ -78,7 +45,7 @@ public class DimensionUtil {
     }
 
     public static JsonArray translateJsonObjNames(List<String> names, List<JsonObjectBuilder> namedObjs,
-            HashMap<String, String> labelMap) {
+            Map<String, String> labelMap) {
         JsonArrayBuilder jsonArr = Json.createArrayBuilder();
         //translate column to label if possible
         for(int i = 0; i < names.size(); i++){
@@ -89,12 +56,12 @@ public class DimensionUtil {
     }
 
     public static JsonArray translateProperties(List<String> names,
-            HashMap<String, JsonObjectBuilder> dimensionProperties) {
+            DimensionIndex dimensionIndex) {
         JsonArrayBuilder translatedProps = Json.createArrayBuilder();
         //translate column to label if possible
         for(String name : names){
-            if(dimensionProperties.containsKey(name) && dimensionProperties.get(name) != null){
-                translatedProps.add(dimensionProperties.get(name));
+            if(dimensionIndex.getProperties(name) != null){
+                translatedProps.add(dimensionIndex.getProperties(name));
             }else{
                 translatedProps.add(Json.createObjectBuilder());//add an empty map
             }
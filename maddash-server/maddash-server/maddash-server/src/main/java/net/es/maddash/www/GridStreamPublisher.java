@@ -0,0 +1,223 @@
+package net.es.maddash.www;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.json.JsonObject;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.glassfish.jersey.media.sse.SseBroadcaster;
+
+import net.es.maddash.DBMesh;
+import net.es.maddash.GridCache;
+import net.es.maddash.MaDDashGlobals;
+import net.es.maddash.NetLogger;
+
+/**
+ * Pushes changes to grids to clients subscribed with server-sent events. Changes are
+ * read from the change log of each cached grid. All changes to a grid within an
+ * interval are coalesced into a single event so busy grids do not flood clients.
+ * A grid stops being watched once all of its clients have disconnected.
+ */
+public class GridStreamPublisher extends Thread{
+    Logger log = Logger.getLogger(GridStreamPublisher.class);
+    Logger netlogger = Logger.getLogger("netlogger");
+    private long interval;
+    private long keepAliveInterval;
+    private Map<String, GridStream> streams;
+
+    final static public String EVENT_CHANGES = "changes";
+    final static private long DEFAULT_KEEP_ALIVE_INTERVAL = 30000;
+
+    /* The clients subscribed to a grid and the version of the grid they last received */
+    private class GridStream {
+        SseBroadcaster broadcaster = new SseBroadcaster();
+        //same clients as the broadcaster, kept so we can tell when all have disconnected
+        List<EventOutput> outputs = new ArrayList<EventOutput>();
+        long lastVersion = -1;
+        long lastSendTime = System.currentTimeMillis();
+        //true once removed from the publisher, a new stream must be created to subscribe
+        boolean closed = false;
+    }
+
+    /**
+     * Creates a new publisher
+     *
+     * @param interval time in milliseconds to wait between checking grids for changes
+     */
+    public GridStreamPublisher(long interval){
+        super("MaDDashGridStreamPublisher");
+        this.setDaemon(true);
+        this.interval = interval;
+        this.keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+        this.streams = new ConcurrentHashMap<String, GridStream>();
+    }
+
+    public void run(){
+        while(true){
+            try{
+                this.execute();
+            }catch(Exception e){
+                log.error("Error executing GridStreamPublisher: " + e.getMessage());
+            }finally{
+                try {
+                    Thread.sleep(this.interval);
+                } catch (InterruptedException e) {
+                    log.error("Interrupt exception: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribes a client to a grid. The client is first sent the changes since the
+     * version it gives, then every change after that.
+     *
+     * @param gridName the name of the grid
+     * @param since the version tag of the grid the client already has. May be null.
+     * @param eventOutput the connection to the client
+     * @throws IOException if the initial event can not be written
+     */
+    public void subscribe(String gridName, String since, EventOutput eventOutput) throws IOException{
+        DBMesh mesh = MaDDashGlobals.getInstance().getGridCache().getMesh(gridName);
+        while(true){
+            GridStream stream = null;
+            synchronized(this){
+                stream = this.streams.get(gridName);
+                if(stream == null){
+                    stream = new GridStream();
+                    stream.lastVersion = mesh.getVersion();
+                    this.streams.put(gridName, stream);
+                }
+            }
+            if(this.subscribe(stream, mesh, since, eventOutput)){
+                return;
+            }
+        }
+    }
+
+    /*
+     * Adds a client to a stream. Returns false if the stream was closed before
+     * the client could be added.
+     */
+    private boolean subscribe(GridStream stream, DBMesh mesh, String since, EventOutput eventOutput) throws IOException{
+        /* hold stream lock so a broadcast can't slip between the first event and subscribing.
+         * clients already subscribed are brought up to the version the new client starts
+         * at so the next broadcast does not resend changes the new client already has. */
+        synchronized(stream){
+            if(stream.closed){
+                return false;
+            }
+            JsonObject pending = null;
+            JsonObject initial = null;
+            synchronized(mesh){
+                pending = this.pendingChanges(stream, mesh);
+                initial = mesh.getChangesSince(GridCache.parseVersionTag(since)).build();
+            }
+            if(pending != null){
+                this.broadcast(stream, pending, System.currentTimeMillis());
+            }
+            eventOutput.write(this.buildEvent(initial));
+            stream.broadcaster.add(eventOutput);
+            stream.outputs.add(eventOutput);
+        }
+        return true;
+    }
+
+    /**
+     * Sends pending changes of each subscribed grid to its clients
+     */
+    public void execute(){
+        GridCache gridCache = MaDDashGlobals.getInstance().getGridCache();
+        long now = System.currentTimeMillis();
+        for(String gridName : this.streams.keySet()){
+            GridStream stream = this.streams.get(gridName);
+            synchronized(stream){
+                DBMesh mesh = null;
+                try{
+                    mesh = gridCache.getMesh(gridName);
+                }catch(Exception e){
+                    //grid removed from configuration
+                    log.debug("Closing stream for grid " + gridName + ": " + e.getMessage());
+                    stream.broadcaster.closeAll();
+                    this.removeStream(gridName, stream);
+                    continue;
+                }
+
+                JsonObject changes = null;
+                synchronized(mesh){
+                    changes = this.pendingChanges(stream, mesh);
+                }
+                if(changes != null){
+                    this.broadcast(stream, changes, now);
+                }else if((now - stream.lastSendTime) >= this.keepAliveInterval){
+                    //comments keep proxies from closing idle streams and let us detect closed clients
+                    stream.broadcaster.broadcast(new OutboundEvent.Builder().comment("keepalive").build());
+                    stream.lastSendTime = now;
+                }
+
+                //the broadcaster closes clients it fails to write to
+                Iterator<EventOutput> outputIter = stream.outputs.iterator();
+                while(outputIter.hasNext()){
+                    if(outputIter.next().isClosed()){
+                        outputIter.remove();
+                    }
+                }
+                if(stream.outputs.isEmpty()){
+                    log.debug("Closing stream for grid " + gridName + ": no clients left");
+                    this.removeStream(gridName, stream);
+                }
+            }
+        }
+    }
+
+    /*
+     * Stops watching a grid for a stream. Caller must hold the stream lock.
+     */
+    private void removeStream(String gridName, GridStream stream){
+        stream.closed = true;
+        synchronized(this){
+            this.streams.remove(gridName, stream);
+        }
+    }
+
+    /*
+     * Returns the changes the clients of a stream have not received and marks them
+     * as received, or null if there are none. Caller must hold the stream and mesh locks.
+     */
+    private JsonObject pendingChanges(GridStream stream, DBMesh mesh){
+        if(mesh.getVersion() == stream.lastVersion){
+            return null;
+        }
+        JsonObject changes = mesh.getChangesSince(stream.lastVersion).build();
+        stream.lastVersion = mesh.getVersion();
+        return changes;
+    }
+
+    /*
+     * Sends changes to every client of a stream. Caller must hold the stream lock.
+     */
+    private void broadcast(GridStream stream, JsonObject changes, long now){
+        NetLogger netLog = NetLogger.getTlogger();
+        netlogger.debug(netLog.start("maddash.GridStreamPublisher.broadcast"));
+        stream.broadcaster.broadcast(this.buildEvent(changes));
+        stream.lastSendTime = now;
+        netlogger.debug(netLog.end("maddash.GridStreamPublisher.broadcast"));
+    }
+
+    private OutboundEvent buildEvent(JsonObject changes){
+        return new OutboundEvent.Builder()
+                .name(EVENT_CHANGES)
+                .id(changes.getString("version"))
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, changes.toString())
+                .build();
+    }
+}
@@ -5,17 +5,22 @@ import java.util.Set;
 
 import javax.ws.rs.core.Application;
 
+import org.glassfish.jersey.media.sse.SseFeature;
+
 import net.es.maddash.www.rest.AdminEventResource;
 import net.es.maddash.www.rest.AdminEventsResource;
 import net.es.maddash.www.rest.AdminScheduleResource;
 import net.es.maddash.www.rest.CellResource;
+import net.es.maddash.www.rest.CheckHistoryResource;
 import net.es.maddash.www.rest.CheckResource;
 import net.es.maddash.www.rest.ChecksResource;
 import net.es.maddash.www.rest.ColumnsResource;
 import net.es.maddash.www.rest.DashboardsResource;
 import net.es.maddash.www.rest.EventResource;
 import net.es.maddash.www.rest.EventsResource;
+import net.es.maddash.www.rest.GridChangesResource;
 import net.es.maddash.www.rest.GridResource;
+import net.es.maddash.www.rest.GridStreamResource;
 import net.es.maddash.www.rest.GridsResource;
 import net.es.maddash.www.rest.MaDAlertDiffResource;
 import net.es.maddash.www.rest.MaDAlertIndexResource;
@@ -32,10 +37,13 @@ public class MaDDashApplication extends Application{
         services.add(DashboardsResource.class);
         services.add(GridsResource.class);
         services.add(GridResource.class);
+        services.add(GridChangesResource.class);
+        services.add(GridStreamResource.class);
         services.add(RowResource.class);
         services.add(RowsResource.class);
         services.add(CellResource.class);
         services.add(CheckResource.class);
+        services.add(CheckHistoryResource.class);
         services.add(ChecksResource.class);
         services.add(ColumnsResource.class);
         services.add(AdminScheduleResource.class);
@@ -44,6 +52,8 @@ public class MaDDashApplication extends Application{
         services.add(EventsResource.class);
         services.add(EventResource.class);
         services.add(ReportResource.class);
+        //server-sent events
+        services.add(SseFeature.class);
         //madalert
         services.add(MaDAlertDiffResource.class);
         services.add(MaDAlertIndexResource.class);
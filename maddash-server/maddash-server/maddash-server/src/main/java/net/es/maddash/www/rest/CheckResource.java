@@ -25,6 +25,7 @@ public class CheckResource {
     @Context UriInfo uriInfo;
     @DefaultValue("10") @QueryParam("resultsPerPage") int pageResults;
     @DefaultValue("0") @QueryParam("page") int page;
+    @QueryParam("cursor") String cursor;
     
     final private String GET_EVENT = "maddash.www.rest.CheckResource.get";
     final public static String rootPath = "/maddash/grids";//must match @Path
@@ -42,7 +43,7 @@ public class CheckResource {
         JsonObject json = null;
         try{
             json = MaDDashGlobals.getInstance().getResourceManager().getCheck(gridName, rowName, 
-                    colName, checkName, uriInfo, pageResults, page);
+                    colName, checkName, uriInfo, pageResults, page, cursor);
         }catch(Exception e){
             this.netLogger.error(netLog.error(GET_EVENT, e.getMessage()));
             return Response.serverError().entity(e.getMessage()).build();
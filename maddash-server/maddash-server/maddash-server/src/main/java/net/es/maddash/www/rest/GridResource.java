@@ -1,12 +1,12 @@
 package net.es.maddash.www.rest;
 
-import javax.json.JsonObject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Response.Status;
@@ -21,6 +21,7 @@ public class GridResource {
     Logger log = Logger.getLogger(GridResource.class);
     Logger netLogger = Logger.getLogger("netLogger");
     @Context UriInfo uriInfo;
+    @Context Request request;
     
     final private String GET_EVENT = "maddash.www.rest.GridResource.get";
     
@@ -30,9 +31,16 @@ public class GridResource {
         NetLogger netLog = NetLogger.getTlogger();
         this.netLogger.info(netLog.start(GET_EVENT));
         
-        JsonObject json = null;
+        String json = null;
+        GridVersion version = null;
         try{
-            json = MaDDashGlobals.getInstance().getResourceManager().getGrid(gridName, uriInfo);
+            version = GridVersion.forState(gridName);
+            Response notModified = version.evaluatePreconditions(this.request);
+            if(notModified != null){
+                this.netLogger.info(netLog.end(GET_EVENT));
+                return notModified;
+            }
+            json = MaDDashGlobals.getInstance().getResourceManager().getGrid(gridName);
         }catch(Exception e){
             this.netLogger.error(netLog.error(GET_EVENT, e.getMessage()));
             return Response.serverError().entity(e.getMessage()).build();
@@ -44,6 +52,6 @@ public class GridResource {
         }
         
         this.netLogger.info(netLog.end(GET_EVENT));
-        return Response.ok().entity(json.toString()).build();
+        return version.ok(json);
     }
 }
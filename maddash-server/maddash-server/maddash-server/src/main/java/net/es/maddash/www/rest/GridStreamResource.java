@@ -0,0 +1,58 @@
+package net.es.maddash.www.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
+
+import net.es.maddash.MaDDashGlobals;
+import net.es.maddash.NetLogger;
+import net.es.maddash.utils.URIUtil;
+
+@Path("/maddash/grids/{gridName}/stream")
+public class GridStreamResource {
+    Logger log = Logger.getLogger(GridStreamResource.class);
+    Logger netLogger = Logger.getLogger("netLogger");
+    @Context UriInfo uriInfo;
+
+    final private String GET_EVENT = "maddash.www.rest.GridStreamResource.get";
+
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    @GET
+    public Response get(@PathParam("gridName") String gridName,
+            @QueryParam(value = "since") String since,
+            @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId,
+            @Context HttpHeaders httpHeaders){
+        NetLogger netLog = NetLogger.getTlogger();
+        this.netLogger.info(netLog.start(GET_EVENT));
+
+        //browsers send the id of the last event they saw when reconnecting
+        if(lastEventId != null){
+            since = lastEventId;
+        }
+        EventOutput eventOutput = new EventOutput();
+        try{
+            MaDDashGlobals.getInstance().getGridStreamPublisher().subscribe(
+                    URIUtil.decodeUriPart(gridName), since, eventOutput);
+        }catch(Exception e){
+            try{
+                eventOutput.close();
+            }catch(Exception e2){}
+            this.netLogger.error(netLog.error(GET_EVENT, e.getMessage()));
+            return Response.serverError().entity(e.getMessage()).build();
+        }
+
+        this.netLogger.info(netLog.end(GET_EVENT));
+        return Response.ok().entity(eventOutput).build();
+    }
+}
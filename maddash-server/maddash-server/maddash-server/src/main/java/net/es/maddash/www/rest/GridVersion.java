@@ -0,0 +1,96 @@
+package net.es.maddash.www.rest;
+
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import net.es.maddash.DBMesh;
+import net.es.maddash.GridCache;
+import net.es.maddash.MaDDashGlobals;
+import net.es.maddash.utils.URIUtil;
+
+/**
+ * Entity tag and modification time of a cached grid. Used by the grid resources
+ * to answer conditional requests without building a response body.
+ */
+class GridVersion {
+    private EntityTag etag;
+    private Date lastModified;
+
+    private GridVersion(EntityTag etag, Date lastModified){
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the version of a grid's state. Changes any time a check in the grid changes.
+     * Has no modification time since the state can change several times within the
+     * one second resolution of HTTP dates.
+     *
+     * @param gridId the id of the grid as given in the URI
+     * @return the version of the grid
+     */
+    static GridVersion forState(String gridId){
+        GridCache gridCache = MaDDashGlobals.getInstance().getGridCache();
+        DBMesh mesh = gridCache.getMesh(URIUtil.decodeUriPart(gridId));
+        synchronized(mesh){
+            return new GridVersion(new EntityTag(GridCache.getVersionTag(mesh.getVersion())), null);
+        }
+    }
+
+    /**
+     * Returns the version of a grid's layout. Only changes when the rows, columns or
+     * checks of the grid change.
+     *
+     * @param gridId the id of the grid as given in the URI
+     * @return the version of the grid layout or null if the grid could not be loaded
+     */
+    static GridVersion forLayout(String gridId){
+        GridCache gridCache = MaDDashGlobals.getInstance().getGridCache();
+        DBMesh mesh = null;
+        try{
+            mesh = gridCache.getMesh(URIUtil.decodeUriPart(gridId));
+        }catch(Exception e){
+            //let the caller query the grid and report the problem
+            return null;
+        }
+        synchronized(mesh){
+            //HTTP dates drop milliseconds so round up to never report a time before the change
+            long layoutModified = (mesh.getLayoutModified() + 999) / 1000 * 1000;
+            return new GridVersion(new EntityTag(GridCache.getVersionTag(mesh.getLayoutVersion())),
+                    new Date(layoutModified));
+        }
+    }
+
+    /**
+     * Checks the If-None-Match and If-Modified-Since headers of a request against this version
+     *
+     * @param request the request to evaluate
+     * @return a not modified response if the client is up to date, null otherwise
+     */
+    Response evaluatePreconditions(Request request){
+        ResponseBuilder builder = null;
+        if(this.lastModified == null){
+            builder = request.evaluatePreconditions(this.etag);
+        }else{
+            builder = request.evaluatePreconditions(this.lastModified, this.etag);
+        }
+        if(builder == null){
+            return null;
+        }
+        return builder.tag(this.etag).lastModified(this.lastModified).build();
+    }
+
+    /**
+     * Builds a successful response tagged with this version
+     *
+     * @param entity the body of the response
+     * @return the response
+     */
+    Response ok(String entity){
+        return Response.ok().entity(entity).tag(this.etag).lastModified(this.lastModified).build();
+    }
+}
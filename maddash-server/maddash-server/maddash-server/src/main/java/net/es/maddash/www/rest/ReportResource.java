@@ -13,7 +13,7 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
-import net.es.maddash.DBMesh;
+import net.es.maddash.MaDDashGlobals;
 import net.es.maddash.madalert.JsonMesh;
 import net.es.maddash.madalert.Madalert;
 import net.es.maddash.madalert.Mesh;
@@ -42,11 +42,14 @@ public class ReportResource {
                 WebTarget resource = webTarget;
                 mesh = JsonMesh.from(Json.createReader(resource.request(javax.ws.rs.core.MediaType.APPLICATION_JSON).get(InputStream.class)).readObject(), jsonUrl);
             }else if(gridName != null){
-                mesh = new DBMesh(gridName, context.getPath());
+                //use the report kept up to date with the grid
+                report = MaDDashGlobals.getInstance().getGridCache().getMesh(gridName).getRuleReport();
             }else{
                 return Response.serverError().entity("Must specify one of 'json' or 'grid' in parameters list").build();
             }
-            report = Madalert.lookupRule(mesh.getName()).createReport(mesh);
+            if(report == null){
+                report = Madalert.lookupRule(mesh.getName()).createReport(mesh);
+            }
         } catch(Exception e) {
             return Response.serverError().entity(e.getMessage()).build();
         } finally {
@@ -7,6 +7,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Response.Status;
@@ -21,6 +22,7 @@ public class RowResource {
     Logger log = Logger.getLogger(GridResource.class);
     Logger netLogger = Logger.getLogger("netLogger");
     @Context UriInfo uriInfo;
+    @Context Request request;
     
     final private String GET_EVENT = "maddash.www.rest.RowResource.get";
     
@@ -31,7 +33,17 @@ public class RowResource {
         this.netLogger.info(netLog.start(GET_EVENT));
         
         JsonObject json = null;
+        GridVersion version = null;
         try{
+            //contents only change when the grid layout changes
+            version = GridVersion.forLayout(gridName);
+            if(version != null){
+                Response notModified = version.evaluatePreconditions(this.request);
+                if(notModified != null){
+                    this.netLogger.info(netLog.end(GET_EVENT));
+                    return notModified;
+                }
+            }
             json = MaDDashGlobals.getInstance().getResourceManager().getRow(gridName, rowName, uriInfo);
         }catch(Exception e){
             this.netLogger.error(netLog.error(GET_EVENT, e.getMessage()));
@@ -44,6 +56,9 @@ public class RowResource {
         }
         
         this.netLogger.info(netLog.end(GET_EVENT));
+        if(version != null){
+            return version.ok(json.toString());
+        }
         return Response.ok().entity(json.toString()).build();
     }
 }